@@ -0,0 +1,138 @@
+package fr.feavy.xml;
+
+import java.util.Random;
+
+/**
+ * Reproducible synthetic documents for the benchmarks. The same shape, size and seed always give the same document.
+ */
+public final class Corpus {
+    public static final long SEED = 0x46454156L;
+
+    private static final String[] TAGS = {"div", "span", "p", "section", "item", "text"};
+    private static final String[] CLASSES = {"red", "blue", "big", "small", "left", "right", "hidden", "active"};
+    private static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit"};
+    private static final String[] PROPERTIES = {"color", "margin", "padding", "font-size", "display", "width", "height", "border"};
+    private static final int DEEP_CHAIN = 200;
+
+    public enum Shape {
+        /**
+         * Root with many short children.
+         */
+        WIDE,
+        /**
+         * Chains of nested elements.
+         */
+        DEEP,
+        /**
+         * Elements with many attributes each.
+         */
+        ATTRIBUTES,
+        /**
+         * Elements holding long multi-line text.
+         */
+        TEXT,
+        /**
+         * Documents made of large stylesheets.
+         */
+        CSS
+    }
+
+    private Corpus() {
+    }
+
+    /**
+     * Generates a document of about {@code elements} elements. Element {@code i} has the id {@code "e" + i}.
+     */
+    public static String generate(Shape shape, int elements) {
+        Random random = new Random(SEED ^ shape.ordinal() * 31L ^ elements);
+        StringBuilder rep = new StringBuilder("<root>\n");
+        switch (shape) {
+            case WIDE:
+                for (int i = 0; i < elements; i++) {
+                    open(rep, random, i, 1);
+                    rep.append(word(random)).append("</").append(TAGS[i % TAGS.length]).append(">\n");
+                }
+                break;
+            case DEEP:
+                for (int i = 0; i < elements; i += DEEP_CHAIN) {
+                    int depth = Math.min(DEEP_CHAIN, elements - i);
+                    for (int j = 0; j < depth; j++) {
+                        open(rep, random, i + j, 1);
+                    }
+                    rep.append(word(random));
+                    for (int j = depth - 1; j >= 0; j--) {
+                        rep.append("</").append(TAGS[(i + j) % TAGS.length]).append(">");
+                    }
+                    rep.append('\n');
+                }
+                break;
+            case ATTRIBUTES:
+                for (int i = 0; i < elements; i++) {
+                    open(rep, random, i, 12);
+                    rep.append("</").append(TAGS[i % TAGS.length]).append(">\n");
+                }
+                break;
+            case TEXT:
+                for (int i = 0; i < elements; i++) {
+                    open(rep, random, i, 1);
+                    for (int line = 0; line < 8; line++) {
+                        rep.append("\n    ");
+                        for (int word = 0; word < 12; word++) {
+                            rep.append(word(random)).append(' ');
+                        }
+                    }
+                    rep.append("\n</").append(TAGS[i % TAGS.length]).append(">\n");
+                }
+                break;
+            case CSS:
+                for (int i = 0; i < elements; i += 100) {
+                    rep.append("<style id=\"e").append(i).append("\">\n");
+                    rep.append(stylesheet(random, Math.min(100, elements - i)));
+                    rep.append("</style>\n");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(shape.name());
+        }
+        return rep.append("</root>\n").toString();
+    }
+
+    /**
+     * Generates a stylesheet of the given number of rules.
+     */
+    public static String stylesheet(int rules) {
+        return stylesheet(new Random(SEED ^ rules), rules);
+    }
+
+    private static String stylesheet(Random random, int rules) {
+        StringBuilder rep = new StringBuilder();
+        for (int i = 0; i < rules; i++) {
+            rep.append(TAGS[random.nextInt(TAGS.length)]).append('.').append(CLASSES[random.nextInt(CLASSES.length)]);
+            if (random.nextBoolean()) {
+                rep.append(", #e").append(random.nextInt(Math.max(1, rules)));
+            }
+            rep.append(" {\n");
+            int properties = 1 + random.nextInt(6);
+            for (int j = 0; j < properties; j++) {
+                rep.append("    ").append(PROPERTIES[random.nextInt(PROPERTIES.length)]).append(": ")
+                        .append(random.nextInt(100)).append("px;\n");
+            }
+            rep.append("}\n");
+        }
+        return rep.toString();
+    }
+
+    private static void open(StringBuilder out, Random random, int index, int attributes) {
+        out.append('<').append(TAGS[index % TAGS.length]).append(" id=\"e").append(index).append('"');
+        out.append(" class=\"").append(CLASSES[random.nextInt(CLASSES.length)]).append(' ')
+                .append(CLASSES[random.nextInt(CLASSES.length)]).append('"');
+        for (int i = 1; i < attributes; i++) {
+            out.append(" data-").append(i).append("=\"").append(word(random)).append(random.nextInt(1000)).append('"');
+        }
+        out.append('>');
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
@@ -0,0 +1,65 @@
+package fr.feavy.xml;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the generated corpora from a string and from a byte stream, and reading of their snapshots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"WIDE", "DEEP", "ATTRIBUTES", "TEXT", "CSS"})
+    public Corpus.Shape shape;
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private final XMLParser parser = new XMLParser();
+    private String document;
+    private byte[] bytes;
+    private byte[] snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        document = Corpus.generate(shape, size);
+        bytes = document.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLSnapshot.write(parser.parse(document), out);
+        snapshot = out.toByteArray();
+    }
+
+    @Benchmark
+    public XMLElement parseString() {
+        return parser.parse(document);
+    }
+
+    @Benchmark
+    public XMLElement parseInputStream() throws IOException {
+        return parser.parse(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public XMLElement readSnapshot() throws IOException {
+        return parser.readSnapshot(new ByteArrayInputStream(snapshot));
+    }
+}
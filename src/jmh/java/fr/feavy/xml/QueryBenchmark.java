@@ -0,0 +1,60 @@
+package fr.feavy.xml;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups by id, tag name and class over the generated corpora, with and without an index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    @Param({"WIDE", "DEEP", "ATTRIBUTES"})
+    public Corpus.Shape shape;
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private XMLElement root;
+    private String lastId;
+
+    @Setup
+    public void setUp() {
+        root = new XMLParser().indexed(indexed).parse(Corpus.generate(shape, size));
+        lastId = "e" + (size - 1);
+    }
+
+    @Benchmark
+    public XMLElement getElementById() {
+        return root.getElementById(lastId);
+    }
+
+    @Benchmark
+    public List<XMLElement> getElementsByTagName() {
+        return root.getElementsByTagName("span");
+    }
+
+    @Benchmark
+    public List<XMLElement> getElementsByClassName() {
+        return root.getElementsByClassName("active");
+    }
+}
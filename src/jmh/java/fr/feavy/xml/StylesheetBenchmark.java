@@ -0,0 +1,42 @@
+package fr.feavy.xml;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of generated stylesheets, which do not depend on the shape of a document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StylesheetBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private String stylesheet;
+
+    @Setup
+    public void setUp() {
+        stylesheet = Corpus.stylesheet(size);
+    }
+
+    @Benchmark
+    public List<CSSRule> parseStylesheet() {
+        return CSSRule.fromString(stylesheet);
+    }
+}
@@ -0,0 +1,65 @@
+package fr.feavy.xml;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and cloning of the generated corpora.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBenchmark {
+    @Param({"WIDE", "DEEP", "ATTRIBUTES", "TEXT", "CSS"})
+    public Corpus.Shape shape;
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private XMLElement root;
+    private XMLElement template;
+
+    @Setup
+    public void setUp() {
+        String document = Corpus.generate(shape, size);
+        root = new XMLParser().parse(document);
+        template = new XMLParser().parse(document);
+        template.cloneShared();
+    }
+
+    @Benchmark
+    public String serialize() {
+        return root.toString();
+    }
+
+    @Benchmark
+    public String serializeCompact() {
+        return XMLWriter.compact().toString(root);
+    }
+
+    @Benchmark
+    public XMLElement deepClone() {
+        return root.clone();
+    }
+
+    @Benchmark
+    public XMLElement sharedClone() {
+        XMLElement rep = template.cloneShared();
+        rep.getChild(0).setAttribute("class", "changed");
+        return rep;
+    }
+}
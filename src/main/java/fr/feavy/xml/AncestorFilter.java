@@ -0,0 +1,66 @@
+package fr.feavy.xml;
+
+/**
+ * Counting bloom filter over the tag names, ids and classes of the ancestors of the element
+ * being matched. A miss proves that no ancestor can match, a hit still needs the full check.
+ */
+final class AncestorFilter {
+    private static final int BITS = 12;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final int[] counts = new int[1 << BITS];
+
+    void push(XMLElement element) {
+        update(element, 1);
+    }
+
+    void pop(XMLElement element) {
+        update(element, -1);
+    }
+
+    boolean mayContainAll(int[] hashes) {
+        for (int hash : hashes) {
+            if (counts[hash & MASK] == 0 || counts[(hash >>> BITS) & MASK] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void update(XMLElement element, int delta) {
+        add(tagHash(element.getTagName()), delta);
+        String id = element.getOwnAttribute("id");
+        if (id != null) {
+            add(idHash(id), delta);
+        }
+        ClassList classes = element.getClassList();
+        for (int i = 0; i < classes.size(); i++) {
+            add(classHash(classes.get(i).hashCode()), delta);
+        }
+    }
+
+    private void add(int hash, int delta) {
+        counts[hash & MASK] += delta;
+        counts[(hash >>> BITS) & MASK] += delta;
+    }
+
+    static int tagHash(String tagName) {
+        return mix(tagName.hashCode());
+    }
+
+    static int idHash(String id) {
+        return mix(id.hashCode() * 31 + '#');
+    }
+
+    /**
+     * @param hash {@link String#hashCode()} of the class name
+     */
+    static int classHash(int hash) {
+        return mix(hash * 31 + '.');
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 15);
+    }
+}
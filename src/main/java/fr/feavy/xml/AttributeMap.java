@@ -0,0 +1,311 @@
+package fr.feavy.xml;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Compact attribute storage keeping keys and values in flat arrays, in insertion order.
+ * <p>
+ * Small maps are searched linearly. Past {@link #HASH_THRESHOLD} entries an open-addressing
+ * index over the arrays is built. Elements without attributes share {@link #EMPTY}.
+ */
+final class AttributeMap extends AbstractMap<String, String> {
+    static final int HASH_THRESHOLD = 8;
+    static final AttributeMap EMPTY = new AttributeMap(0, true);
+
+    private final boolean readOnly;
+    private String[] keys;
+    private String[] values;
+    private int size;
+    private int[] index;
+    private int modCount;
+
+    AttributeMap() {
+        this(4, false);
+    }
+
+    AttributeMap(int capacity, boolean readOnly) {
+        this.keys = new String[capacity];
+        this.values = new String[capacity];
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Copies the given map, returning {@link #EMPTY} when it has no entries.
+     */
+    static AttributeMap copyOf(Map<String, String> map) {
+        if (map.isEmpty()) {
+            return EMPTY;
+        }
+        AttributeMap copy = new AttributeMap(map.size(), false);
+        if (map instanceof AttributeMap) {
+            AttributeMap source = (AttributeMap) map;
+            System.arraycopy(source.keys, 0, copy.keys, 0, source.size);
+            System.arraycopy(source.values, 0, copy.values, 0, source.size);
+            copy.size = source.size;
+            if (copy.size > HASH_THRESHOLD) {
+                copy.rebuildIndex();
+            }
+        } else {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                copy.set(entry.getKey(), entry.getValue());
+            }
+        }
+        return copy;
+    }
+
+    String keyAt(int i) {
+        return keys[i];
+    }
+
+    String valueAt(int i) {
+        return values[i];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int i = indexOf((String) key);
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    public String put(String key, String value) {
+        checkWritable();
+        return set(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int i = indexOf((String) key);
+        if (i < 0) {
+            return null;
+        }
+        checkWritable();
+        String previous = values[i];
+        removeAt(i);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        reset();
+    }
+
+    /**
+     * Sets a value without the read-only check, used by the owner of a read-only view.
+     */
+    String set(String key, String value) {
+        int i = indexOf(Objects.requireNonNull(key));
+        if (i >= 0) {
+            String previous = values[i];
+            values[i] = value;
+            return previous;
+        }
+        if (size == keys.length) {
+            int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        modCount++;
+        if (index != null && size * 2 > index.length) {
+            rebuildIndex();
+        } else if (index != null) {
+            insertIndex(size - 1);
+        } else if (size > HASH_THRESHOLD) {
+            rebuildIndex();
+        }
+        return null;
+    }
+
+    void reset() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        index = null;
+        modCount++;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Read-only attributes");
+        }
+    }
+
+    private int indexOf(String key) {
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                String candidate = keys[i];
+                if (candidate == key || candidate.equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = mix(key.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            int position = index[slot] - 1;
+            if (position < 0) {
+                return -1;
+            }
+            String candidate = keys[position];
+            if (candidate == key || candidate.equals(key)) {
+                return position;
+            }
+        }
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        modCount++;
+        if (size > HASH_THRESHOLD) {
+            rebuildIndex();
+        } else {
+            index = null;
+        }
+    }
+
+    private void rebuildIndex() {
+        index = new int[Integer.highestOneBit(size * 4 - 1)];
+        for (int i = 0; i < size; i++) {
+            insertIndex(i);
+        }
+    }
+
+    private void insertIndex(int position) {
+        int mask = index.length - 1;
+        int slot = mix(keys[position].hashCode()) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = position + 1;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private final class EntryIterator implements Iterator<Entry<String, String>> {
+        private int next;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new AttributeEntry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            checkWritable();
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class AttributeEntry implements Entry<String, String> {
+        private final String key;
+        private final int position;
+
+        AttributeEntry(int position) {
+            this.key = keys[position];
+            this.position = position;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getValue() {
+            return position < size && keys[position] == key ? values[position] : get(key);
+        }
+
+        @Override
+        public String setValue(String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            return key.equals(entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
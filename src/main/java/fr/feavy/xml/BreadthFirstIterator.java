@@ -0,0 +1,32 @@
+package fr.feavy.xml;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Level-order iterator over a subtree, keeping the elements left to visit in a queue.
+ */
+final class BreadthFirstIterator implements Iterator<XMLElement> {
+    private final Deque<XMLElement> queue = new ArrayDeque<>();
+
+    BreadthFirstIterator(XMLElement root) {
+        queue.add(root);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public XMLElement next() {
+        XMLElement rep = queue.poll();
+        if (rep == null) {
+            throw new NoSuchElementException();
+        }
+        queue.addAll(rep.getChildren());
+        return rep;
+    }
+}
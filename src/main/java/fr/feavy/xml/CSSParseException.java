@@ -0,0 +1,19 @@
+package fr.feavy.xml;
+
+public class CSSParseException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int offset;
+
+    public CSSParseException(String message, int offset) {
+        super(message + " at offset " + offset);
+        this.offset = offset;
+    }
+
+    /**
+     * Character offset in the parsed stylesheet where the error was detected.
+     */
+    public int getOffset() {
+        return offset;
+    }
+}
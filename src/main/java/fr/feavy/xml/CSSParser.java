@@ -0,0 +1,267 @@
+package fr.feavy.xml;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single pass stylesheet parser producing {@link CSSRule}s.
+ * <p>
+ * Comments are dropped and whitespace runs outside strings are collapsed to a single space, so
+ * selectors such as {@code div > p} and values such as {@code 12px Arial} keep their meaning.
+ * Selectors are split on top-level commas and declarations on top-level semicolons, strings and
+ * parentheses being kept as they are. At-rules are skipped, as rules only hold plain style rules.
+ */
+final class CSSParser {
+    private final String text;
+    private final int length;
+    private final StringBuilder builder = new StringBuilder();
+    private int position;
+
+    CSSParser(String text) {
+        this.text = text;
+        this.length = text.length();
+    }
+
+    List<CSSRule> parse() {
+        List<CSSRule> rep = new ArrayList<>();
+        while (true) {
+            skipWhitespaceAndComments();
+            if (position == length) {
+                return rep;
+            }
+            char c = text.charAt(position);
+            if (c == '@') {
+                skipAtRule();
+            } else if (c == '}' || c == '{' || c == ';') {
+                throw error("Unexpected '" + c + "'", position);
+            } else {
+                rep.add(parseRule());
+            }
+        }
+    }
+
+    private CSSRule parseRule() {
+        int start = position;
+        Set<String> selectors = new LinkedHashSet<>();
+        builder.setLength(0);
+        int depth = 0;
+        while (true) {
+            if (position == length) {
+                throw error("Missing '{' after selector", start);
+            }
+            char c = text.charAt(position);
+            if (c == '{' && depth == 0) {
+                position++;
+                addSelector(selectors, start);
+                break;
+            } else if (c == ',' && depth == 0) {
+                position++;
+                addSelector(selectors, start);
+            } else if (c == '}' || c == ';' || c == '{') {
+                throw error("Unexpected '" + c + "' in selector", position);
+            } else if (c == '"' || c == '\'') {
+                appendString();
+            } else if (isCommentStart()) {
+                skipComment();
+                appendSpace();
+            } else if (Character.isWhitespace(c)) {
+                position++;
+                appendSpace();
+            } else {
+                if (c == '(' || c == '[') {
+                    depth++;
+                } else if ((c == ')' || c == ']') && depth > 0) {
+                    depth--;
+                }
+                builder.append(c);
+                position++;
+            }
+        }
+        Map<String, String> properties = new LinkedHashMap<>();
+        parseDeclarations(properties, position - 1);
+        return new CSSRule(selectors, properties);
+    }
+
+    private void addSelector(Set<String> selectors, int start) {
+        String selector = collected();
+        if (selector.isEmpty()) {
+            throw error("Missing selector", start);
+        }
+        selectors.add(selector);
+    }
+
+    private void parseDeclarations(Map<String, String> properties, int blockStart) {
+        while (true) {
+            skipWhitespaceAndComments();
+            if (position == length) {
+                throw error("Unterminated block", blockStart);
+            }
+            char c = text.charAt(position);
+            if (c == '}') {
+                position++;
+                return;
+            }
+            if (c == ';') {
+                position++;
+                continue;
+            }
+            int nameStart = position;
+            while (position < length && !isNameEnd(text.charAt(position))) {
+                position++;
+            }
+            if (position == nameStart) {
+                throw error("Expected property name", position);
+            }
+            String name = text.substring(nameStart, position);
+            skipWhitespaceAndComments();
+            if (position == length || text.charAt(position) != ':') {
+                throw error("Expected ':' after property '" + name + "'", position);
+            }
+            position++;
+            String value = readValue(blockStart);
+            if (!value.isEmpty()) {
+                properties.put(name, value);
+            }
+        }
+    }
+
+    /**
+     * Reads a value up to the next top-level {@code ';'}, which is consumed, or {@code '}'}, which is not.
+     */
+    private String readValue(int blockStart) {
+        builder.setLength(0);
+        int depth = 0;
+        while (true) {
+            if (position == length) {
+                throw error("Unterminated block", blockStart);
+            }
+            char c = text.charAt(position);
+            if (depth == 0 && c == ';') {
+                position++;
+                return collected();
+            } else if (depth == 0 && c == '}') {
+                return collected();
+            } else if (c == '{') {
+                throw error("Unexpected '{' in value", position);
+            } else if (c == '"' || c == '\'') {
+                appendString();
+            } else if (isCommentStart()) {
+                skipComment();
+                appendSpace();
+            } else if (Character.isWhitespace(c)) {
+                position++;
+                appendSpace();
+            } else {
+                if (c == '(' || c == '[') {
+                    depth++;
+                } else if ((c == ')' || c == ']') && depth > 0) {
+                    depth--;
+                }
+                builder.append(c);
+                position++;
+            }
+        }
+    }
+
+    private void skipAtRule() {
+        int start = position;
+        int depth = 0;
+        while (position < length) {
+            char c = text.charAt(position);
+            if (c == '"' || c == '\'') {
+                skipString();
+            } else if (isCommentStart()) {
+                skipComment();
+            } else {
+                position++;
+                if (c == ';' && depth == 0) {
+                    return;
+                } else if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    if (--depth <= 0) {
+                        return;
+                    }
+                }
+            }
+        }
+        if (depth > 0) {
+            throw error("Unterminated at-rule", start);
+        }
+    }
+
+    private void skipWhitespaceAndComments() {
+        while (position < length) {
+            if (Character.isWhitespace(text.charAt(position))) {
+                position++;
+            } else if (isCommentStart()) {
+                skipComment();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private boolean isCommentStart() {
+        return text.charAt(position) == '/' && position + 1 < length && text.charAt(position + 1) == '*';
+    }
+
+    private void skipComment() {
+        int end = text.indexOf("*/", position + 2);
+        if (end < 0) {
+            throw error("Unterminated comment", position);
+        }
+        position = end + 2;
+    }
+
+    private void appendString() {
+        int start = position;
+        skipString();
+        builder.append(text, start, position);
+    }
+
+    private void skipString() {
+        int start = position;
+        char quote = text.charAt(position++);
+        while (position < length) {
+            char c = text.charAt(position++);
+            if (c == quote) {
+                return;
+            } else if (c == '\\') {
+                position++;
+            } else if (c == '\n') {
+                break;
+            }
+        }
+        throw error("Unterminated string", start);
+    }
+
+    private void appendSpace() {
+        int last = builder.length() - 1;
+        if (last >= 0 && builder.charAt(last) != ' ') {
+            builder.append(' ');
+        }
+    }
+
+    private String collected() {
+        int end = builder.length();
+        if (end > 0 && builder.charAt(end - 1) == ' ') {
+            end--;
+        }
+        String rep = builder.substring(0, end);
+        builder.setLength(0);
+        return rep;
+    }
+
+    private static boolean isNameEnd(char c) {
+        return c == ':' || c == ';' || c == '{' || c == '}' || c == '/' || Character.isWhitespace(c);
+    }
+
+    private static CSSParseException error(String message, int offset) {
+        return new CSSParseException(message, offset);
+    }
+}
@@ -2,15 +2,18 @@ package fr.feavy.xml;
 
 import java.util.*;
 
-import static fr.feavy.xml.XMLElement.spaces;
-
 public class CSSRule {
     private final Set<String> selectors;
+    private final Set<String> selectorView = new SelectorSet();
     private final Map<String, String> properties;
+    private final Map<String, String> propertyView = new PropertyMap();
+    private Selector selector;
+    StyleElement owner;
+    boolean frozen;
 
     public CSSRule() {
-        this.selectors = new HashSet<>();
-        this.properties = new HashMap<>();
+        this.selectors = new LinkedHashSet<>();
+        this.properties = new LinkedHashMap<>();
     }
 
     public CSSRule(Set<String> selectors, Map<String, String> properties) {
@@ -18,40 +21,26 @@ public class CSSRule {
         this.properties = properties;
     }
 
+    /**
+     * Parses the style rules of a stylesheet, at-rules being skipped.
+     *
+     * @throws CSSParseException if the stylesheet is malformed
+     */
     public static List<CSSRule> fromString(String text) {
-        List<CSSRule> rep = new ArrayList<>();
-
-        text = text.replaceAll("\\s+", "");
-
-        String[] declarations = text.split("}");
-
-        for (String declaration : declarations) {
-            Set<String> selectors = new HashSet<>();
-            Map<String, String> properties = new HashMap<>();
-            CSSRule current = new CSSRule(selectors, properties);
-
-            String[] strings = declaration.split("\\{");
-            
-            if(strings.length < 2) {
-                continue;
-            }
-
-            String[] selectorsStr = strings[0].split(",");
-            String[] propertiesStr = strings[1].split(";");
-
-            selectors.addAll(Arrays.asList(selectorsStr));
-
-            for (String property : propertiesStr) {
-                String[] parts = property.split(":");
-                properties.put(parts[0], parts[1]);
-            }
-
-            rep.add(current);
-        }
-        return rep;
+        return new CSSParser(text).parse();
     }
 
+    /**
+     * Live map of the properties of this rule. Changes made through it notify the style element owning the rule.
+     */
     public Map<String, String> getProperties() {
+        return frozen ? Collections.unmodifiableMap(properties) : propertyView;
+    }
+
+    /**
+     * Properties of this rule for reading only.
+     */
+    Map<String, String> properties() {
         return properties;
     }
 
@@ -68,19 +57,69 @@ public class CSSRule {
     }
 
     public void setProperty(String name, String value) {
+        checkMutable();
         properties.put(name, value);
+        changed();
     }
 
     public void removeProperty(String property) {
+        checkMutable();
         properties.remove(property);
+        changed();
     }
 
+    /**
+     * Live set of the selectors of this rule. Changes made through it recompile the selector of the rule.
+     */
     public Set<String> getSelectors() {
-        return selectors;
+        return frozen ? Collections.unmodifiableSet(selectors) : selectorView;
     }
 
     public void addSelector(String selector) {
-        this.selectors.add(selector);
+        selectorView.add(selector);
+    }
+
+    public void removeSelector(String selector) {
+        selectorView.remove(selector);
+    }
+
+    /**
+     * Rules of a style element frozen by {@link XMLElement#cloneShared()} are shared by its copies.
+     */
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Rule is shared by copy-on-write clones");
+        }
+    }
+
+    private void selectorsChanged() {
+        selector = null;
+        if (owner != null) {
+            owner.selectorsChanged();
+        }
+    }
+
+    private void changed() {
+        if (owner != null) {
+            owner.rulesChanged();
+        }
+    }
+
+    /**
+     * Compiled form of the selectors of this rule, recompiled when the selectors change.
+     * Selectors not supported by {@link Selector} never match.
+     */
+    public Selector getSelector() {
+        Selector rep = selector;
+        if (rep == null) {
+            rep = Selector.compileValid(selectors);
+            selector = rep;
+        }
+        return rep;
+    }
+
+    public boolean matches(XMLElement element) {
+        return getSelector().matches(element);
     }
 
     public boolean hasSelector(String selector) {
@@ -92,13 +131,7 @@ public class CSSRule {
     }
 
     public String toString(int indent) {
-        StringBuilder rep = new StringBuilder();
-        rep.append(spaces(indent)).append(String.join(", ", selectors)).append(" {").append("\n");
-        for (Map.Entry<String, String> entry : properties.entrySet()) {
-            rep.append(spaces(indent + 2)).append(entry.getKey()).append(": ").append(entry.getValue()).append(";\n");
-        }
-        rep.append(spaces(indent)).append("}\n");
-        return rep.toString();
+        return XMLWriter.pretty().toString(this, indent);
     }
 
     @Override
@@ -106,8 +139,197 @@ public class CSSRule {
         return toString(0);
     }
 
+    /**
+     * View of the properties notifying the owner of the rule when they change.
+     */
+    private final class PropertyMap extends AbstractMap<String, String> {
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    Iterator<Entry<String, String>> iterator = properties.entrySet().iterator();
+                    return new Iterator<Entry<String, String>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            return new PropertyEntry(iterator.next());
+                        }
+
+                        @Override
+                        public void remove() {
+                            checkMutable();
+                            iterator.remove();
+                            changed();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return properties.size();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return properties.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return properties.containsKey(key);
+        }
+
+        @Override
+        public String get(Object key) {
+            return properties.get(key);
+        }
+
+        @Override
+        public String put(String name, String value) {
+            checkMutable();
+            String previous = properties.put(name, value);
+            changed();
+            return previous;
+        }
+
+        @Override
+        public String remove(Object name) {
+            checkMutable();
+            if (!properties.containsKey(name)) {
+                return null;
+            }
+            String previous = properties.remove(name);
+            changed();
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            checkMutable();
+            if (!properties.isEmpty()) {
+                properties.clear();
+                changed();
+            }
+        }
+    }
+
+    private final class PropertyEntry implements Map.Entry<String, String> {
+        private final Map.Entry<String, String> entry;
+
+        PropertyEntry(Map.Entry<String, String> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public String getKey() {
+            return entry.getKey();
+        }
+
+        @Override
+        public String getValue() {
+            return entry.getValue();
+        }
+
+        @Override
+        public String setValue(String value) {
+            checkMutable();
+            String previous = entry.setValue(value);
+            changed();
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return entry.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return entry.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return entry.toString();
+        }
+    }
+
+    /**
+     * View of the selectors dropping the compiled selector when they change.
+     */
+    private final class SelectorSet extends AbstractSet<String> {
+        @Override
+        public Iterator<String> iterator() {
+            Iterator<String> iterator = selectors.iterator();
+            return new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return iterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    checkMutable();
+                    iterator.remove();
+                    selectorsChanged();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return selectors.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return selectors.contains(o);
+        }
+
+        @Override
+        public boolean add(String selector) {
+            checkMutable();
+            if (!selectors.add(selector)) {
+                return false;
+            }
+            selectorsChanged();
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            checkMutable();
+            if (!selectors.remove(o)) {
+                return false;
+            }
+            selectorsChanged();
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            checkMutable();
+            if (!selectors.isEmpty()) {
+                selectors.clear();
+                selectorsChanged();
+            }
+        }
+    }
+
     @Override
     public CSSRule clone() {
-        return new CSSRule(new HashSet<>(this.selectors), new HashMap<>(this.properties));
+        return new CSSRule(new LinkedHashSet<>(this.selectors), new LinkedHashMap<>(this.properties));
     }
 }
@@ -0,0 +1,128 @@
+package fr.feavy.xml;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only set of the class names of a {@code class} attribute, parsed once.
+ * <p>
+ * Names read by a parser are canonicalized through its symbol table, and a 64-bit mask with one bit
+ * per name hash lets most membership tests fail without comparing any string. Lookups do not allocate.
+ */
+final class ClassList extends AbstractSet<String> {
+    static final ClassList EMPTY = new ClassList(new String[0], 0L);
+
+    private final String[] names;
+    private final long mask;
+
+    private ClassList(String[] names, long mask) {
+        this.names = names;
+        this.mask = mask;
+    }
+
+    static ClassList parse(String value) {
+        return parse(value, null);
+    }
+
+    /**
+     * Splits a class attribute on whitespace, ignoring duplicated names. Names are canonicalized through
+     * the symbol table if there is one, a value made of a single name being kept as is otherwise.
+     */
+    static ClassList parse(String value, SymbolTable symbols) {
+        if (value == null || value.isEmpty()) {
+            return EMPTY;
+        }
+        int length = value.length();
+        String[] names = new String[2];
+        int count = 0;
+        long mask = 0L;
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean separator = i == length || Character.isWhitespace(value.charAt(i));
+            if (separator && start >= 0) {
+                String name;
+                if (symbols != null) {
+                    name = symbols.lookup(value, start, i - start);
+                } else {
+                    // a whole value is returned without copying
+                    name = value.substring(start, i);
+                }
+                long bit = bit(name);
+                if ((mask & bit) == 0 || indexOf(names, count, name) < 0) {
+                    if (count == names.length) {
+                        String[] grown = new String[count * 2];
+                        System.arraycopy(names, 0, grown, 0, count);
+                        names = grown;
+                    }
+                    names[count++] = name;
+                    mask |= bit;
+                }
+                start = -1;
+            } else if (!separator && start < 0) {
+                start = i;
+            }
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        if (count < names.length) {
+            String[] trimmed = new String[count];
+            System.arraycopy(names, 0, trimmed, 0, count);
+            names = trimmed;
+        }
+        return new ClassList(names, mask);
+    }
+
+    private static long bit(String name) {
+        int hash = name.hashCode();
+        return 1L << ((hash ^ (hash >>> 16)) & 63);
+    }
+
+    private static int indexOf(String[] names, int count, String name) {
+        for (int i = 0; i < count; i++) {
+            if (names[i] == name || names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String name = (String) o;
+        return (mask & bit(name)) != 0 && indexOf(names, names.length, name) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    String get(int index) {
+        return names[index];
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < names.length;
+            }
+
+            @Override
+            public String next() {
+                if (next >= names.length) {
+                    throw new NoSuchElementException();
+                }
+                return names[next++];
+            }
+        };
+    }
+}
@@ -0,0 +1,91 @@
+package fr.feavy.xml;
+
+import java.util.Arrays;
+
+/**
+ * Forwards tree mutations to several listeners, so an index and a style resolver can watch the same tree.
+ */
+final class CompositeTreeListener implements TreeListener {
+    private final TreeListener[] listeners;
+
+    private CompositeTreeListener(TreeListener[] listeners) {
+        this.listeners = listeners;
+    }
+
+    /**
+     * Listener notifying {@code current}, which may be null, and then {@code added}.
+     */
+    static TreeListener add(TreeListener current, TreeListener added) {
+        if (current == null) {
+            return added;
+        }
+        TreeListener[] existing = current instanceof CompositeTreeListener
+                ? ((CompositeTreeListener) current).listeners
+                : new TreeListener[]{current};
+        TreeListener[] listeners = Arrays.copyOf(existing, existing.length + 1);
+        listeners[existing.length] = added;
+        return new CompositeTreeListener(listeners);
+    }
+
+    /**
+     * Listener notifying {@code current} without {@code removed}, or null when none is left.
+     */
+    static TreeListener remove(TreeListener current, TreeListener removed) {
+        if (current == removed) {
+            return null;
+        }
+        if (!(current instanceof CompositeTreeListener)) {
+            return current;
+        }
+        TreeListener[] listeners = Arrays.stream(((CompositeTreeListener) current).listeners)
+                .filter(listener -> listener != removed)
+                .toArray(TreeListener[]::new);
+        return listeners.length == 1 ? listeners[0] : new CompositeTreeListener(listeners);
+    }
+
+    static boolean contains(TreeListener current, TreeListener listener) {
+        if (current instanceof CompositeTreeListener) {
+            return Arrays.asList(((CompositeTreeListener) current).listeners).contains(listener);
+        }
+        return current == listener && listener != null;
+    }
+
+    @Override
+    public void attributeChanged(XMLElement element, String key, String oldValue, String newValue) {
+        for (TreeListener listener : listeners) {
+            listener.attributeChanged(element, key, oldValue, newValue);
+        }
+    }
+
+    @Override
+    public void attached(XMLElement subtree) {
+        for (TreeListener listener : listeners) {
+            listener.attached(subtree);
+        }
+    }
+
+    @Override
+    public void detached(XMLElement subtree) {
+        for (TreeListener listener : listeners) {
+            listener.detached(subtree);
+        }
+    }
+
+    @Override
+    public void rulesChanged(StyleElement style) {
+        for (TreeListener listener : listeners) {
+            listener.rulesChanged(style);
+        }
+    }
+
+    @Override
+    public ElementIndex getIndex() {
+        for (TreeListener listener : listeners) {
+            ElementIndex index = listener.getIndex();
+            if (index != null) {
+                return index;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,48 @@
+package fr.feavy.xml;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable result of the cascade for an element, see {@link StyleResolver}.
+ * Elements with the same matched rules and the same parent style share the same instance.
+ */
+public final class ComputedStyle {
+    static final ComputedStyle EMPTY = new ComputedStyle(new LinkedHashMap<>());
+
+    private final Map<String, String> properties;
+    private final boolean inheritedOnly;
+
+    ComputedStyle(LinkedHashMap<String, String> properties) {
+        this.properties = Collections.unmodifiableMap(properties);
+        this.inheritedOnly = StyleResolver.INHERITED.containsAll(properties.keySet());
+    }
+
+    public String getPropertyValue(String name) {
+        return properties.get(name);
+    }
+
+    public boolean hasProperty(String name) {
+        return properties.containsKey(name);
+    }
+
+    /**
+     * Read-only view of the computed properties.
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Whether every property of this style is inherited, in which case children without rules share it.
+     */
+    boolean isInheritedOnly() {
+        return inheritedOnly;
+    }
+
+    @Override
+    public String toString() {
+        return properties.toString();
+    }
+}
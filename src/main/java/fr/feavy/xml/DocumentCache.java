@@ -0,0 +1,207 @@
+package fr.feavy.xml;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of parsed documents in front of an {@link XMLParser}.
+ * <p>
+ * Documents are keyed by the SHA-256 of their content and by the factory configuration of the
+ * parser, so changing the factories never returns trees built with the previous ones. The least
+ * recently used documents are evicted once the estimated retained size of the cached trees exceeds
+ * the configured bound. Cached trees are never handed out: they are frozen and every call returns a
+ * copy-on-write clone, see {@link XMLElement#cloneShared()}, so a hit only copies what the caller touches.
+ */
+public final class DocumentCache {
+    private static final int ELEMENT_WEIGHT = 96;
+    private static final int ATTRIBUTE_WEIGHT = 48;
+    private static final int BUFFER_SIZE = 4096;
+
+    private final XMLParser parser;
+    private final long maxWeight;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param maxWeight bound, in estimated bytes, of the trees kept in the cache
+     */
+    public DocumentCache(XMLParser parser, long maxWeight) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("Negative cache weight " + maxWeight);
+        }
+        this.parser = parser;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns a copy of the cached tree for this content, parsing and caching it first if needed.
+     */
+    public XMLElement parse(String content) {
+        ElementFactories factories = parser.getElementFactories();
+        Key key = new Key(digest(content), factories, parser.isIndexed());
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+        }
+        if (entry == null) {
+            XMLElement root = new XMLParser(factories, parser.getSymbolTable()).parse(content);
+            if (root == null) {
+                return null;
+            }
+            entry = new Entry(root, estimateWeight(root));
+            // freezes the tree before it is published to other threads
+            root.cloneShared();
+            put(key, entry);
+        }
+        XMLElement rep = entry.root.cloneShared();
+        rep.notInherited = parser.getNotInherited();
+        if (key.indexed) {
+            rep.buildIndex();
+        }
+        return rep;
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        if (entry.weight > maxWeight) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += entry.weight;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            weight -= eldest.weight;
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Estimated retained size, in bytes, of the cached trees.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private static byte[] digest(String content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            buffer[length++] = (byte) (c >>> 8);
+            buffer[length++] = (byte) c;
+            if (length == buffer.length) {
+                digest.update(buffer, 0, length);
+                length = 0;
+            }
+        }
+        digest.update(buffer, 0, length);
+        return digest.digest();
+    }
+
+    private static long estimateWeight(XMLElement root) {
+        long rep = 0;
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            rep += ELEMENT_WEIGHT + (long) ATTRIBUTE_WEIGHT * element.attributeMap().size();
+            for (Map.Entry<String, String> attribute : element.attributeMap().entrySet()) {
+                rep += 2L * attribute.getValue().length();
+            }
+            if (element instanceof StyleElement) {
+                for (CSSRule rule : ((StyleElement) element).rules()) {
+                    rep += ELEMENT_WEIGHT + rule.toString(0).length() * 2L;
+                }
+            } else if (element.getContent() != null) {
+                rep += 2L * element.getContent().length();
+            }
+            for (XMLElement child : element.childrenView()) {
+                stack.push(child);
+            }
+        }
+        return rep;
+    }
+
+    private static final class Key {
+        final byte[] digest;
+        final ElementFactories factories;
+        final boolean indexed;
+        final int hash;
+
+        Key(byte[] digest, ElementFactories factories, boolean indexed) {
+            this.digest = digest;
+            this.factories = factories;
+            this.indexed = indexed;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return factories == other.factories && indexed == other.indexed && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final XMLElement root;
+        final long weight;
+
+        Entry(XMLElement root, long weight) {
+            this.root = root;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package fr.feavy.xml;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parsed document kept in sync with edits of its source, created by {@link XMLParser#parseEditable(String)}.
+ * <p>
+ * The span of every element in the source is recorded relatively to the end of its previous sibling,
+ * so an edit only shifts the spans of the elements enclosing it. An edit reparses the smallest range
+ * of sibling elements enclosing it which still reads as balanced elements, and the tree is updated
+ * in place: the elements outside that range, including the rule lists of their style elements, are
+ * kept by identity and tree listeners see the change as child removals and additions. When no such
+ * range exists the whole document is parsed again.
+ * <p>
+ * The tree must only be changed through {@link #edit(int, int, String)} since other changes are not
+ * reflected in the source. Instances are not thread-safe.
+ */
+public final class EditableDocument {
+    private final ElementFactories factories;
+    private final SymbolTable symbols;
+    private final boolean indexed;
+    private final Set<String> notInherited;
+    private final Map<XMLElement, Span> spans = new IdentityHashMap<>();
+    private String text;
+    private XMLElement root;
+    private boolean complete;
+
+    EditableDocument(String text, ElementFactories factories, SymbolTable symbols, boolean indexed, Set<String> notInherited) {
+        this.factories = factories;
+        this.symbols = symbols;
+        this.indexed = indexed;
+        this.notInherited = notInherited;
+        parseDocument(text);
+    }
+
+    public XMLElement getRoot() {
+        return root;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Replaces {@code removedLength} characters of the source at {@code offset} with the inserted text
+     * and updates the tree accordingly.
+     *
+     * @return the root of the updated tree, which is a new element only when the whole document was parsed again
+     * @throws XMLParseException if the edited document is malformed, in which case the document is unchanged
+     * @throws CSSParseException if an edited stylesheet is malformed, in which case the document is unchanged
+     */
+    public XMLElement edit(int offset, int removedLength, String inserted) {
+        if (offset < 0 || removedLength < 0 || offset + removedLength > text.length()) {
+            throw new IndexOutOfBoundsException("Edit [" + offset + ", " + (offset + removedLength) + ") out of a source of length " + text.length());
+        }
+        String edited = text.substring(0, offset) + inserted + text.substring(offset + removedLength);
+        int delta = inserted.length() - removedLength;
+        if (root == null || !complete) {
+            parseDocument(edited);
+            return root;
+        }
+
+        // finds the deepest element whose body encloses the edit
+        List<XMLElement> path = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        int start = spans.get(root).gap;
+        if (!inBody(root, start, offset, removedLength)) {
+            parseDocument(edited);
+            return root;
+        }
+        XMLElement element = root;
+        int first;
+        int last;
+        while (true) {
+            path.add(element);
+            starts.add(start);
+            List<XMLElement> children = element.getChildren();
+            int position = start + spans.get(element).open;
+            first = -1;
+            last = -1;
+            XMLElement inner = null;
+            int innerStart = 0;
+            int index;
+            for (index = 0; index < children.size(); index++) {
+                XMLElement child = children.get(index);
+                Span span = spans.get(child);
+                int childStart = position + span.gap;
+                int childEnd = childStart + span.length;
+                if (childStart >= offset + removedLength) {
+                    break;
+                }
+                if (inBody(child, childStart, offset, removedLength)) {
+                    inner = child;
+                    innerStart = childStart;
+                    break;
+                }
+                if (childEnd > offset) {
+                    if (first < 0) {
+                        first = index;
+                    }
+                    last = index;
+                }
+                position = childEnd;
+            }
+            if (inner == null) {
+                if (first < 0) {
+                    first = index;
+                    last = index - 1;
+                }
+                break;
+            }
+            element = inner;
+            start = innerStart;
+        }
+
+        // reparses the enclosing range of siblings, widening it to the enclosing element until it is balanced
+        for (int depth = path.size() - 1; depth >= 0; depth--) {
+            XMLElement parent = path.get(depth);
+            int parentStart = starts.get(depth);
+            int[] region = region(parent, parentStart, first, last);
+            Fragment fragment = parseFragment(edited, region[0], region[1] + delta);
+            if (fragment != null) {
+                apply(parent, first, last, fragment, region[1] + delta);
+                for (int i = 0; i <= depth; i++) {
+                    spans.get(path.get(i)).length += delta;
+                }
+                text = edited;
+                return root;
+            }
+            if (depth == 0) {
+                break;
+            }
+            first = indexOf(path.get(depth - 1).getChildren(), parent);
+            last = first;
+        }
+        parseDocument(edited);
+        return root;
+    }
+
+    private boolean inBody(XMLElement element, int start, int offset, int removedLength) {
+        Span span = spans.get(element);
+        return span.close > 0 && offset >= start + span.open && offset + removedLength <= start + span.length - span.close;
+    }
+
+    /**
+     * Source range between the end of the sibling before {@code first} and the start of the one after {@code last}.
+     */
+    private int[] region(XMLElement parent, int parentStart, int first, int last) {
+        Span parentSpan = spans.get(parent);
+        int position = parentStart + parentSpan.open;
+        int regionStart = position;
+        int regionEnd = parentStart + parentSpan.length - parentSpan.close;
+        List<XMLElement> children = parent.getChildren();
+        for (int i = 0; i < children.size(); i++) {
+            Span span = spans.get(children.get(i));
+            int childStart = position + span.gap;
+            if (i == last + 1) {
+                regionEnd = childStart;
+                break;
+            }
+            position = childStart + span.length;
+            if (i == first - 1) {
+                regionStart = position;
+            }
+        }
+        return new int[]{regionStart, regionEnd};
+    }
+
+    /**
+     * Replaces the children from {@code first} to {@code last} with the elements of the fragment.
+     */
+    private void apply(XMLElement parent, int first, int last, Fragment fragment, int regionEnd) {
+        List<XMLElement> children = parent.getChildren();
+        if (last == children.size() - 1) {
+            setContent(parent, fragment.tail);
+        }
+        for (int i = last; i >= first; i--) {
+            forget(children.get(i));
+            parent.removeChild(i);
+        }
+        spans.putAll(fragment.spans);
+        for (int i = 0; i < fragment.elements.size(); i++) {
+            parent.addChild(first + i, fragment.elements.get(i));
+        }
+        int next = first + fragment.elements.size();
+        if (next < children.size()) {
+            spans.get(children.get(next)).gap = regionEnd - fragment.end;
+        }
+    }
+
+    /**
+     * Sets the content of an element, keeping the rules of a style element which did not change.
+     */
+    private static void setContent(XMLElement element, String content) {
+        if (!(element instanceof StyleElement)) {
+            element.setContent(content);
+            return;
+        }
+        StyleElement style = (StyleElement) element;
+        List<CSSRule> previous = new ArrayList<>(style.getRules());
+        List<CSSRule> rules = content == null ? new ArrayList<>() : CSSRule.fromString(content);
+        for (int i = 0; i < rules.size(); i++) {
+            CSSRule rule = rules.get(i);
+            for (int j = 0; j < previous.size(); j++) {
+                CSSRule candidate = previous.get(j);
+                if (candidate.getSelectors().equals(rule.getSelectors()) && candidate.getProperties().equals(rule.getProperties())) {
+                    rules.set(i, candidate);
+                    previous.remove(j);
+                    break;
+                }
+            }
+        }
+        style.setRules(rules);
+    }
+
+    private void forget(XMLElement subtree) {
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(subtree);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            spans.remove(element);
+            for (XMLElement child : element.getChildren()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    private static int indexOf(List<XMLElement> elements, XMLElement element) {
+        for (int i = 0; i < elements.size(); i++) {
+            if (elements.get(i) == element) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void parseDocument(String source) {
+        Fragment fragment = parse(source, 0, source.length(), true);
+        text = source;
+        spans.clear();
+        spans.putAll(fragment.spans);
+        root = fragment.elements.isEmpty() ? null : fragment.elements.get(0);
+        complete = fragment.complete;
+        if (root == null) {
+            return;
+        }
+        root.notInherited = notInherited;
+        if (indexed) {
+            root.buildIndex();
+        }
+    }
+
+    /**
+     * Parses a range of the source as a sequence of sibling elements, or returns null if it is not balanced.
+     */
+    private Fragment parseFragment(String source, int start, int end) {
+        try {
+            Fragment rep = parse(source, start, end, false);
+            return rep.complete ? rep : null;
+        } catch (XMLParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a range of the source with the rules of {@link XMLCursor} and {@link TreeBuilder}, recording
+     * the span of every element. A document ends with its root element and ignores text outside of it,
+     * a fragment is made of any number of elements and keeps the text after the last one.
+     */
+    private Fragment parse(String source, int start, int end, boolean document) {
+        Fragment rep = new Fragment();
+        XMLTokenizer tokenizer = new XMLTokenizer(source, start, end, symbols, false);
+        TreeBuilder builder = null;
+        XMLElement[] open = new XMLElement[16];
+        int[] openStarts = new int[16];
+        int[] previousEnds = new int[17];
+        int depth = 0;
+        previousEnds[0] = start;
+        rep.end = start;
+        StringBuilder tail = null;
+        try {
+            int token;
+            while ((token = tokenizer.next()) != XMLTokenizer.END_DOCUMENT) {
+                if (token == XMLTokenizer.START_TAG) {
+                    if (depth == 0) {
+                        builder = new TreeBuilder(factories, symbols);
+                        tail = null;
+                    }
+                    builder.startElement(tokenizer.getName(), tokenizer.getAttributes());
+                    XMLElement element = builder.getCurrentElement();
+                    int elementStart = (int) tokenizer.getTokenStart();
+                    int bodyStart = (int) tokenizer.getOffset();
+                    Span span = new Span(elementStart - previousEnds[depth], bodyStart - elementStart);
+                    rep.spans.put(element, span);
+                    if (tokenizer.isSelfClosing()) {
+                        builder.endElement(tokenizer.getName());
+                        span.length = span.open;
+                        previousEnds[depth] = bodyStart;
+                        if (depth == 0 && closed(rep, builder, bodyStart, document)) {
+                            break;
+                        }
+                    } else {
+                        if (depth + 1 == open.length) {
+                            open = Arrays.copyOf(open, open.length * 2);
+                            openStarts = Arrays.copyOf(openStarts, open.length);
+                            previousEnds = Arrays.copyOf(previousEnds, open.length + 1);
+                        }
+                        open[depth] = element;
+                        openStarts[depth] = elementStart;
+                        depth++;
+                        previousEnds[depth] = bodyStart;
+                    }
+                } else if (token == XMLTokenizer.END_TAG) {
+                    if (depth == 0) {
+                        throw new XMLParseException("Unexpected end tag </" + tokenizer.getName() + ">", tokenizer.getOffset());
+                    }
+                    builder.endElement(tokenizer.getName());
+                    depth--;
+                    int elementEnd = (int) tokenizer.getOffset();
+                    Span span = rep.spans.get(open[depth]);
+                    span.length = elementEnd - openStarts[depth];
+                    span.close = elementEnd - (int) tokenizer.getTokenStart();
+                    open[depth] = null;
+                    previousEnds[depth] = elementEnd;
+                    if (depth == 0 && closed(rep, builder, elementEnd, document)) {
+                        break;
+                    }
+                } else if (depth > 0) {
+                    builder.text(tokenizer.getText());
+                } else if (!document) {
+                    if (tail == null) {
+                        tail = new StringBuilder();
+                    } else {
+                        tail.append('\n');
+                    }
+                    tail.append(tokenizer.getText());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (depth > 0) {
+            if (document) {
+                rep.elements.add(builder.getRoot());
+            }
+            rep.complete = false;
+        } else {
+            rep.complete = true;
+        }
+        rep.tail = tail == null ? null : tail.toString();
+        return rep;
+    }
+
+    /**
+     * Records a closed top-level element and returns whether parsing stops there.
+     */
+    private static boolean closed(Fragment fragment, TreeBuilder builder, int end, boolean document) {
+        fragment.elements.add(builder.getRoot());
+        fragment.end = end;
+        return document;
+    }
+
+    /**
+     * Span of an element in the source. The gap is the distance from the end of the previous sibling,
+     * or from the end of the start tag of the parent for a first child.
+     */
+    private static final class Span {
+        int gap;
+        final int open;
+        int length;
+        int close;
+
+        Span(int gap, int open) {
+            this.gap = gap;
+            this.open = open;
+        }
+    }
+
+    private static final class Fragment {
+        final List<XMLElement> elements = new ArrayList<>();
+        final Map<XMLElement, Span> spans = new IdentityHashMap<>();
+        int end;
+        String tail;
+        boolean complete;
+    }
+}
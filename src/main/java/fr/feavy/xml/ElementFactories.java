@@ -0,0 +1,81 @@
+package fr.feavy.xml;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+
+/**
+ * Immutable mapping from tag names to the factories creating their elements.
+ * Instances can be shared freely between parsers and threads.
+ */
+public final class ElementFactories {
+    private static final ElementFactories DEFAULTS = new ElementFactories(Collections.emptyMap()).with("style", StyleElement::new);
+
+    private final Map<String, Function<Map<String, String>, ? extends XMLElement>> factories;
+    private final Map<SymbolTable, Map<String, Function<Map<String, String>, ? extends XMLElement>>> bindings = new WeakHashMap<>();
+    private volatile Binding binding;
+
+    private ElementFactories(Map<String, Function<Map<String, String>, ? extends XMLElement>> factories) {
+        this.factories = factories;
+    }
+
+    /**
+     * Factories registered by default, handling {@code <style>} elements.
+     */
+    public static ElementFactories defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Returns a copy of this configuration with the given factory registered for the tag.
+     * Factories receive the attributes of the element, elements without attributes all share
+     * the same read-only empty map.
+     */
+    public ElementFactories with(String tag, Function<Map<String, String>, ? extends XMLElement> factory) {
+        Map<String, Function<Map<String, String>, ? extends XMLElement>> copy = new HashMap<>(factories);
+        copy.put(tag.toLowerCase(), factory);
+        return new ElementFactories(Collections.unmodifiableMap(copy));
+    }
+
+    public Function<Map<String, String>, ? extends XMLElement> get(String tag) {
+        return factories.get(tag.toLowerCase());
+    }
+
+    /**
+     * Factories keyed by the canonical tag names of the given symbol table, to be looked up by identity.
+     * Bindings are kept per symbol table, so parsers sharing this configuration with their own tables
+     * only bind it once each. The last binding is checked first without locking.
+     */
+    Map<String, Function<Map<String, String>, ? extends XMLElement>> bind(SymbolTable symbols) {
+        Binding binding = this.binding;
+        if (binding != null && binding.symbols == symbols) {
+            return binding.factories;
+        }
+        Map<String, Function<Map<String, String>, ? extends XMLElement>> bound;
+        synchronized (bindings) {
+            bound = bindings.get(symbols);
+            if (bound == null) {
+                bound = new IdentityHashMap<>();
+                for (Map.Entry<String, Function<Map<String, String>, ? extends XMLElement>> entry : factories.entrySet()) {
+                    bound.put(symbols.intern(entry.getKey()), entry.getValue());
+                }
+                bindings.put(symbols, bound);
+            }
+        }
+        this.binding = new Binding(symbols, bound);
+        return bound;
+    }
+
+    private static final class Binding {
+        final SymbolTable symbols;
+        final Map<String, Function<Map<String, String>, ? extends XMLElement>> factories;
+
+        Binding(SymbolTable symbols, Map<String, Function<Map<String, String>, ? extends XMLElement>> factories) {
+            this.symbols = symbols;
+            this.factories = factories;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package fr.feavy.xml;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Id, tag name and class lookups for a tree, kept up to date through {@link TreeListener}.
+ * <p>
+ * Every element gets a position increasing in document order, spaced so that elements added
+ * to the tree take positions between the ones of the elements around them. Buckets are sorted
+ * by position, so they stay in document order through appends, insertions and removals without
+ * walking the tree. The positions are only assigned again when an insertion finds no room left.
+ */
+final class ElementIndex implements TreeListener {
+    private static final long SPACING = 1L << 20;
+
+    private final XMLElement root;
+    private final Map<String, TreeMap<Long, XMLElement>> ids = new HashMap<>();
+    private final Map<String, TreeMap<Long, XMLElement>> tags = new HashMap<>();
+    private final Map<String, TreeMap<Long, XMLElement>> classes = new HashMap<>();
+    private final Map<XMLElement, Long> positions = new IdentityHashMap<>();
+    private final TreeMap<Long, XMLElement> documentOrder = new TreeMap<>();
+
+    ElementIndex(XMLElement root) {
+        this.root = root;
+    }
+
+    XMLElement getRoot() {
+        return root;
+    }
+
+    @Override
+    public ElementIndex getIndex() {
+        return this;
+    }
+
+    synchronized XMLElement getElementById(XMLElement scope, String id) {
+        for (XMLElement element : ordered(ids.get(id))) {
+            if (isInside(element, scope, true)) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    synchronized List<XMLElement> getElementsByTagName(XMLElement scope, String tagName) {
+        return descendants(scope, tags.get(tagName));
+    }
+
+    synchronized List<XMLElement> getElementsByClassName(XMLElement scope, String clazz) {
+        return descendants(scope, classes.get(clazz));
+    }
+
+    private List<XMLElement> descendants(XMLElement scope, TreeMap<Long, XMLElement> bucket) {
+        List<XMLElement> rep = new ArrayList<>();
+        for (XMLElement element : ordered(bucket)) {
+            if (isInside(element, scope, false)) {
+                rep.add(element);
+            }
+        }
+        return rep;
+    }
+
+    private boolean isInside(XMLElement element, XMLElement scope, boolean orSelf) {
+        if (scope == root) {
+            return orSelf || element != root;
+        }
+        XMLElement current = orSelf ? element : element.parent();
+        while (current != null) {
+            if (current == scope) {
+                return true;
+            }
+            current = current.parent();
+        }
+        return false;
+    }
+
+    private static Collection<XMLElement> ordered(TreeMap<Long, XMLElement> bucket) {
+        return bucket == null ? Collections.emptySet() : bucket.values();
+    }
+
+    /**
+     * Indexes the whole tree, assigning evenly spaced positions to its elements.
+     */
+    void addAll(XMLElement subtree) {
+        add(elements(subtree), 0, SPACING);
+    }
+
+    /**
+     * Elements of a subtree in document order.
+     */
+    private static List<XMLElement> elements(XMLElement subtree) {
+        List<XMLElement> rep = new ArrayList<>();
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(subtree);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            rep.add(element);
+            List<XMLElement> children = element.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+            }
+        }
+        return rep;
+    }
+
+    private void add(List<XMLElement> elements, long after, long step) {
+        long position = after;
+        for (XMLElement element : elements) {
+            position += step;
+            positions.put(element, position);
+            documentOrder.put(position, element);
+            put(tags, element.getTagName(), element, position);
+            String id = element.getOwnAttribute("id");
+            if (id != null) {
+                put(ids, id, element, position);
+            }
+            for (String clazz : element.getClassList()) {
+                put(classes, clazz, element, position);
+            }
+        }
+    }
+
+    private void removeAll(XMLElement subtree) {
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(subtree);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            Long position = positions.remove(element);
+            if (position == null) {
+                continue;
+            }
+            documentOrder.remove(position);
+            remove(tags, element.getTagName(), position);
+            remove(ids, element.getOwnAttribute("id"), position);
+            for (String clazz : element.getClassList()) {
+                remove(classes, clazz, position);
+            }
+            for (XMLElement child : element.getChildren()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    private static void put(Map<String, TreeMap<Long, XMLElement>> buckets, String key, XMLElement element, long position) {
+        buckets.computeIfAbsent(key, k -> new TreeMap<>()).put(position, element);
+    }
+
+    private static void remove(Map<String, TreeMap<Long, XMLElement>> buckets, String key, long position) {
+        if (key == null) {
+            return;
+        }
+        TreeMap<Long, XMLElement> bucket = buckets.get(key);
+        if (bucket != null && bucket.remove(position) != null && bucket.isEmpty()) {
+            buckets.remove(key);
+        }
+    }
+
+    /**
+     * Element right before the given one in document order, which is its parent or the last
+     * descendant of its previous sibling.
+     */
+    private static XMLElement previous(XMLElement element) {
+        XMLElement parent = element.parent();
+        List<XMLElement> siblings = parent.getChildren();
+        // appended elements are found at once
+        int index = siblings.size() - 1;
+        while (siblings.get(index) != element) {
+            index--;
+        }
+        if (index == 0) {
+            return parent;
+        }
+        XMLElement rep = siblings.get(index - 1);
+        List<XMLElement> children;
+        while (!(children = rep.getChildren()).isEmpty()) {
+            rep = children.get(children.size() - 1);
+        }
+        return rep;
+    }
+
+    @Override
+    public synchronized void attributeChanged(XMLElement element, String key, String oldValue, String newValue) {
+        Long position = positions.get(element);
+        if (position == null) {
+            return;
+        }
+        if ("id".equals(key)) {
+            remove(ids, oldValue, position);
+            if (newValue != null) {
+                put(ids, newValue, element, position);
+            }
+        } else if ("class".equals(key)) {
+            Set<String> previous = new LinkedHashSet<>(ClassList.parse(oldValue));
+            for (String clazz : ClassList.parse(newValue)) {
+                if (!previous.remove(clazz)) {
+                    put(classes, clazz, element, position);
+                }
+            }
+            for (String clazz : previous) {
+                remove(classes, clazz, position);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void attached(XMLElement subtree) {
+        removeAll(subtree);
+        List<XMLElement> elements = elements(subtree);
+        long after = positions.get(previous(subtree));
+        Long before = documentOrder.higherKey(after);
+        long step = before == null ? SPACING : (before - after) / (elements.size() + 1);
+        if (step > 0) {
+            add(elements, after, step);
+            return;
+        }
+        // no room left between the neighbours of the subtree, every position is assigned again
+        positions.clear();
+        documentOrder.clear();
+        ids.clear();
+        tags.clear();
+        classes.clear();
+        addAll(root);
+    }
+
+    @Override
+    public synchronized void detached(XMLElement subtree) {
+        removeAll(subtree);
+    }
+}
@@ -0,0 +1,180 @@
+package fr.feavy.xml;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Outline of a document parsed in lazy mode, see {@link XMLParser#lazy(boolean)}.
+ * <p>
+ * A structural pass records the offsets of every element without creating elements, attribute maps
+ * or strings. Elements are then created from the source one level at a time, when the children or
+ * the content of their parent are first accessed, with the same tokenizer rules and factories as a
+ * full parse. The source is kept until every element has been created.
+ */
+final class LazyDocument {
+    private final Map<String, Function<Map<String, String>, ? extends XMLElement>> factories;
+    private final XMLTokenizer tokenizer;
+    private final SymbolTable symbols;
+    private int[] starts = new int[16];
+    private int[] bodyStarts = new int[16];
+    private int[] contentStarts = new int[16];
+    private int[] ends = new int[16];
+    private int[] firstChildren = new int[16];
+    private int[] nextSiblings = new int[16];
+    private int count;
+
+    private LazyDocument(String text, ElementFactories factories, SymbolTable symbols) {
+        this.factories = factories.bind(symbols);
+        this.tokenizer = new XMLTokenizer(text, symbols);
+        this.symbols = symbols;
+    }
+
+    /**
+     * Reads the outline of the document and creates its root element, or returns null if it has none.
+     *
+     * @throws XMLParseException if the document is malformed
+     */
+    static XMLElement parse(String text, ElementFactories factories, SymbolTable symbols) {
+        LazyDocument document = new LazyDocument(text, factories, symbols);
+        try {
+            document.scan(new XMLTokenizer(text, 0, text.length(), symbols, true));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return document.count == 0 ? null : document.create(0);
+    }
+
+    /**
+     * Records the elements up to the end of the root element, the way {@link XMLCursor} reads them.
+     */
+    private void scan(XMLTokenizer structure) throws IOException {
+        int[] open = new int[16];
+        int[] lastChildren = new int[16];
+        int depth = 0;
+        while (true) {
+            int token = structure.next();
+            if (token == XMLTokenizer.START_TAG) {
+                int node = add((int) structure.getTokenStart(), (int) structure.getOffset());
+                if (depth > 0) {
+                    int parent = open[depth - 1];
+                    int last = lastChildren[depth - 1];
+                    if (last < 0) {
+                        firstChildren[parent] = node;
+                    } else {
+                        nextSiblings[last] = node;
+                    }
+                    lastChildren[depth - 1] = node;
+                }
+                if (structure.isSelfClosing()) {
+                    ends[node] = bodyStarts[node];
+                    if (depth == 0) {
+                        return;
+                    }
+                    contentStarts[open[depth - 1]] = (int) structure.getOffset();
+                } else {
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, depth * 2);
+                        lastChildren = Arrays.copyOf(lastChildren, depth * 2);
+                    }
+                    open[depth] = node;
+                    lastChildren[depth] = -1;
+                    depth++;
+                }
+            } else if (token == XMLTokenizer.END_TAG) {
+                if (depth == 0) {
+                    throw new XMLParseException("Unexpected end tag </" + structure.getName() + ">", structure.getOffset());
+                }
+                depth--;
+                ends[open[depth]] = (int) structure.getTokenStart();
+                if (depth == 0) {
+                    return;
+                }
+                contentStarts[open[depth - 1]] = (int) structure.getOffset();
+            } else if (token == XMLTokenizer.END_DOCUMENT) {
+                return;
+            }
+        }
+    }
+
+    private int add(int start, int bodyStart) {
+        if (count == starts.length) {
+            int capacity = count * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            bodyStarts = Arrays.copyOf(bodyStarts, capacity);
+            contentStarts = Arrays.copyOf(contentStarts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        }
+        starts[count] = start;
+        bodyStarts[count] = bodyStart;
+        contentStarts[count] = bodyStart;
+        // elements left open at the end of the document get no content, like in a full parse
+        ends[count] = -1;
+        firstChildren[count] = -1;
+        nextSiblings[count] = -1;
+        return count++;
+    }
+
+    int firstChild(int node) {
+        return firstChildren[node];
+    }
+
+    int nextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    boolean hasChildren(int node) {
+        return firstChildren[node] >= 0;
+    }
+
+    /**
+     * Creates the element from its start tag, leaving its children and content to be read on first access.
+     */
+    XMLElement create(int node) {
+        try {
+            tokenizer.reset(starts[node], bodyStarts[node]);
+            tokenizer.next();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String tag = tokenizer.getName();
+        Map<String, String> attributes = AttributeMap.copyOf(tokenizer.getAttributes());
+        Function<Map<String, String>, ? extends XMLElement> factory = factories.get(tag);
+        XMLElement rep = factory == null ? new XMLElement(tag, attributes) : factory.apply(attributes);
+        rep.readClasses(symbols);
+        rep.readLazily(this, node);
+        return rep;
+    }
+
+    /**
+     * Text read right before the end tag of the element, as {@link TreeBuilder} sets it, or null if there is none.
+     */
+    String content(int node) {
+        if (ends[node] < 0 || contentStarts[node] == ends[node]) {
+            return null;
+        }
+        StringBuilder rep = null;
+        try {
+            tokenizer.reset(contentStarts[node], ends[node]);
+            int token;
+            while ((token = tokenizer.next()) != XMLTokenizer.END_DOCUMENT) {
+                if (token != XMLTokenizer.TEXT) {
+                    continue;
+                }
+                if (rep == null) {
+                    rep = new StringBuilder();
+                } else {
+                    rep.append('\n');
+                }
+                rep.append(tokenizer.getText());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rep == null ? null : rep.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package fr.feavy.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decodes a UTF-8 file straight from memory-mapped windows of the file.
+ * Windows are remapped as the reader advances, so files larger than 2 GB are supported.
+ * Malformed sequences are replaced with U+FFFD.
+ */
+final class MappedFileReader extends Reader {
+    static final long WINDOW_SIZE = 1L << 28;
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int position;
+    private int limit;
+    private char pendingLowSurrogate;
+
+    MappedFileReader(FileChannel channel, long start, long windowSize) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        map(start);
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        position = 0;
+        limit = (int) Math.min(windowSize, size - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, limit);
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        int count = 0;
+        if (pendingLowSurrogate != 0 && length > 0) {
+            buffer[offset + count++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+        while (count < length) {
+            if (limit - position < 4 && windowStart + limit < size) {
+                map(windowStart + position);
+            }
+            if (position == limit) {
+                break;
+            }
+            if (window.get(position) < 0) {
+                count += decode(buffer, offset + count, length - count);
+                continue;
+            }
+            int end = Math.min(limit, position + length - count);
+            int b;
+            while (position < end && (b = window.get(position)) >= 0) {
+                buffer[offset + count++] = (char) b;
+                position++;
+            }
+        }
+        return count == 0 && length > 0 ? -1 : count;
+    }
+
+    /**
+     * Decodes one multi-byte sequence, returning the number of chars written.
+     */
+    private int decode(char[] buffer, int offset, int length) {
+        int b = window.get(position) & 0xFF;
+        int needed;
+        int codePoint;
+        if (b >= 0xC2 && b <= 0xDF) {
+            needed = 1;
+            codePoint = b & 0x1F;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            needed = 2;
+            codePoint = b & 0x0F;
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            needed = 3;
+            codePoint = b & 0x07;
+        } else {
+            position++;
+            buffer[offset] = REPLACEMENT;
+            return 1;
+        }
+        int index = position + 1;
+        for (int i = 0; i < needed; i++, index++) {
+            if (index >= limit || (window.get(index) & 0xC0) != 0x80) {
+                position = index;
+                buffer[offset] = REPLACEMENT;
+                return 1;
+            }
+            codePoint = (codePoint << 6) | (window.get(index) & 0x3F);
+        }
+        position = index;
+        if (needed == 2 && (codePoint < 0x800 || Character.isSurrogate((char) codePoint))
+                || needed == 3 && (codePoint < 0x10000 || codePoint > Character.MAX_CODE_POINT)) {
+            buffer[offset] = REPLACEMENT;
+            return 1;
+        }
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            buffer[offset] = (char) codePoint;
+            return 1;
+        }
+        buffer[offset] = Character.highSurrogate(codePoint);
+        if (length > 1) {
+            buffer[offset + 1] = Character.lowSurrogate(codePoint);
+            return 2;
+        }
+        pendingLowSurrogate = Character.lowSurrogate(codePoint);
+        return 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
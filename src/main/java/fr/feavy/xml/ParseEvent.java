@@ -0,0 +1,71 @@
+package fr.feavy.xml;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for one parse, carrying the same values as {@link ParseMetrics}.
+ * Parses are only measured while the event or a {@link ParseListener} is enabled.
+ */
+@Name("fr.feavy.xml.Parse")
+@Label("XML Parse")
+@Category("XML")
+@Description("Tree built by an XMLParser")
+final class ParseEvent extends Event {
+    private static final EventType TYPE = EventType.getEventType(ParseEvent.class);
+
+    @Label("Elements")
+    int elementCount;
+
+    @Label("Attributes")
+    int attributeCount;
+
+    @Label("Text Length")
+    long textLength;
+
+    @Label("Max Depth")
+    int maxDepth;
+
+    @Label("Factory Calls")
+    int factoryCalls;
+
+    @Label("Tokenization")
+    @Timespan(Timespan.NANOSECONDS)
+    long tokenizeNanos;
+
+    @Label("Attribute Extraction")
+    @Timespan(Timespan.NANOSECONDS)
+    long attributeNanos;
+
+    @Label("Element Creation")
+    @Timespan(Timespan.NANOSECONDS)
+    long factoryNanos;
+
+    @Label("CSS Parsing")
+    @Timespan(Timespan.NANOSECONDS)
+    long cssNanos;
+
+    /**
+     * Whether a recording enables the event, checked without allocating an event.
+     */
+    static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    void set(ParseMetrics metrics) {
+        elementCount = metrics.elementCount;
+        attributeCount = metrics.attributeCount;
+        textLength = metrics.textLength;
+        maxDepth = metrics.maxDepth;
+        factoryCalls = metrics.factoryCalls;
+        tokenizeNanos = metrics.tokenizeNanos;
+        attributeNanos = metrics.attributeNanos;
+        factoryNanos = metrics.factoryNanos;
+        cssNanos = metrics.cssNanos;
+    }
+}
@@ -0,0 +1,10 @@
+package fr.feavy.xml;
+
+/**
+ * Receives the metrics of every tree parsed by an {@link XMLParser}, see {@link XMLParser#parseListener(ParseListener)}.
+ * Called on the parsing thread once the tree is built.
+ */
+@FunctionalInterface
+public interface ParseListener {
+    void parsed(ParseMetrics metrics);
+}
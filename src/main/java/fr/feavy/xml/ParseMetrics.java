@@ -0,0 +1,88 @@
+package fr.feavy.xml;
+
+/**
+ * Counters and per-phase timings of one parse, reported to a {@link ParseListener}.
+ * Phases do not overlap: tokenization covers reading tags and text, the other phases the work
+ * done by the tree builder for them.
+ */
+public final class ParseMetrics {
+    int elementCount;
+    int attributeCount;
+    long textLength;
+    int maxDepth;
+    int factoryCalls;
+    long tokenizeNanos;
+    long attributeNanos;
+    long factoryNanos;
+    long cssNanos;
+    long totalNanos;
+
+    ParseMetrics() {
+    }
+
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    /**
+     * Number of characters of the text runs, after normalization.
+     */
+    public long getTextLength() {
+        return textLength;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Number of elements created by a registered factory rather than as plain {@link XMLElement}s.
+     */
+    public int getFactoryCalls() {
+        return factoryCalls;
+    }
+
+    public long getTokenizeNanos() {
+        return tokenizeNanos;
+    }
+
+    /**
+     * Time spent copying the attributes of the start tags.
+     */
+    public long getAttributeNanos() {
+        return attributeNanos;
+    }
+
+    /**
+     * Time spent creating the elements, including the registered factories.
+     */
+    public long getFactoryNanos() {
+        return factoryNanos;
+    }
+
+    /**
+     * Time spent parsing the content of style elements.
+     */
+    public long getCssNanos() {
+        return cssNanos;
+    }
+
+    /**
+     * Time spent on the whole parse, including the phases and indexing the tree.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ParseMetrics{elements=" + elementCount + ", attributes=" + attributeCount + ", textLength=" + textLength
+                + ", maxDepth=" + maxDepth + ", factoryCalls=" + factoryCalls + ", tokenizeNanos=" + tokenizeNanos
+                + ", attributeNanos=" + attributeNanos + ", factoryNanos=" + factoryNanos + ", cssNanos=" + cssNanos
+                + ", totalNanos=" + totalNanos + "}";
+    }
+}
@@ -0,0 +1,108 @@
+package fr.feavy.xml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rules of a style element bucketed by the rightmost compound of their selectors: by id when it has
+ * one, otherwise by its first class, otherwise by tag name, the remaining selectors going to the
+ * universal bucket. The rules that may match an element are found with a few hash lookups.
+ */
+final class RuleIndex {
+    private final Map<String, List<Entry>> ids = new HashMap<>();
+    private final Map<String, List<Entry>> classes = new HashMap<>();
+    private final Map<String, List<Entry>> tags = new HashMap<>();
+    private final List<Entry> universal = new ArrayList<>();
+    private final Map<CSSRule, Entry> entries = new IdentityHashMap<>();
+    private int nextPosition;
+
+    RuleIndex(List<CSSRule> rules) {
+        for (CSSRule rule : rules) {
+            add(rule);
+        }
+    }
+
+    boolean contains(CSSRule rule) {
+        return entries.containsKey(rule);
+    }
+
+    /**
+     * Adds a rule coming after every indexed rule in source order.
+     */
+    void add(CSSRule rule) {
+        if (entries.containsKey(rule)) {
+            return;
+        }
+        Entry entry = new Entry(rule, nextPosition++);
+        entries.put(rule, entry);
+        for (Selector.Compound subject : rule.getSelector().subjects()) {
+            List<Entry> bucket;
+            if (subject.id != null) {
+                bucket = ids.computeIfAbsent(subject.id, k -> new ArrayList<>());
+            } else if (subject.classes.length > 0) {
+                bucket = classes.computeIfAbsent(subject.classes[0], k -> new ArrayList<>());
+            } else if (subject.tagName != null) {
+                bucket = tags.computeIfAbsent(subject.tagName, k -> new ArrayList<>());
+            } else {
+                bucket = universal;
+            }
+            if (bucket.isEmpty() || bucket.get(bucket.size() - 1) != entry) {
+                bucket.add(entry);
+                entry.buckets.add(bucket);
+            }
+        }
+    }
+
+    void remove(CSSRule rule) {
+        Entry entry = entries.remove(rule);
+        if (entry != null) {
+            for (List<Entry> bucket : entry.buckets) {
+                bucket.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Rules that may match the element, in source order. Each still has to be matched.
+     */
+    List<CSSRule> candidates(XMLElement element) {
+        List<Entry> found = new ArrayList<>();
+        addAll(found, ids.get(element.getOwnAttribute("id")));
+        ClassList classList = element.getClassList();
+        for (int i = 0; i < classList.size(); i++) {
+            addAll(found, classes.get(classList.get(i)));
+        }
+        addAll(found, tags.get(element.getTagName()));
+        addAll(found, universal);
+        found.sort((a, b) -> Integer.compare(a.position, b.position));
+        List<CSSRule> rep = new ArrayList<>(found.size());
+        Entry previous = null;
+        for (Entry entry : found) {
+            if (entry != previous) {
+                rep.add(entry.rule);
+                previous = entry;
+            }
+        }
+        return rep;
+    }
+
+    private static void addAll(List<Entry> found, List<Entry> bucket) {
+        if (bucket != null) {
+            found.addAll(bucket);
+        }
+    }
+
+    private static final class Entry {
+        final CSSRule rule;
+        final int position;
+        final List<List<Entry>> buckets = new ArrayList<>(1);
+
+        Entry(CSSRule rule, int position) {
+            this.rule = rule;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fr.feavy.xml;
+
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * Materializes the subtrees accepted by a selector and hands them to a consumer one at a time.
+ * Everything outside a selected subtree is skipped without creating elements.
+ */
+final class SelectiveHandler implements XMLHandler {
+    private final ElementFactories factories;
+    private final SymbolTable symbols;
+    private final BiPredicate<String, Map<String, String>> selector;
+    private final Consumer<? super XMLElement> consumer;
+    private TreeBuilder builder;
+
+    SelectiveHandler(ElementFactories factories, SymbolTable symbols, BiPredicate<String, Map<String, String>> selector, Consumer<? super XMLElement> consumer) {
+        this.factories = factories;
+        this.symbols = symbols;
+        this.selector = selector;
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void startElement(String tagName, Map<String, String> attributes) {
+        if (builder == null) {
+            if (!selector.test(tagName, attributes)) {
+                return;
+            }
+            builder = new TreeBuilder(factories, symbols);
+        }
+        builder.startElement(tagName, attributes);
+    }
+
+    @Override
+    public void endElement(String tagName) {
+        if (builder == null) {
+            return;
+        }
+        builder.endElement(tagName);
+        if (builder.isComplete()) {
+            XMLElement element = builder.getRoot();
+            builder = null;
+            consumer.accept(element);
+        }
+    }
+
+    @Override
+    public void text(String text) {
+        if (builder != null) {
+            builder.text(text);
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package fr.feavy.xml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled CSS selector list, supporting type, universal, {@code .class}, {@code #id} and
+ * {@code [attribute]} selectors combined with descendant and child combinators.
+ * <p>
+ * Selectors are matched from right to left. When searching a tree, the tag names, ids and classes
+ * of the ancestors are kept in a bloom filter so descendant selectors requiring an ancestor that
+ * does not exist are rejected without walking up the tree.
+ */
+public final class Selector {
+    private static final int DESCENDANT = 0;
+    private static final int CHILD = 1;
+
+    private final String text;
+    private final Complex[] complexes;
+
+    private Selector(String text, Complex[] complexes) {
+        this.text = text;
+        this.complexes = complexes;
+    }
+
+    /**
+     * Compiles a comma separated selector list.
+     *
+     * @throws IllegalArgumentException if the selector is invalid or unsupported
+     */
+    public static Selector compile(String selector) {
+        return new Parser(selector).parse();
+    }
+
+    /**
+     * Compiles each of the given selectors, skipping the ones that are invalid or unsupported.
+     */
+    static Selector compileValid(Collection<String> selectors) {
+        List<Complex> complexes = new ArrayList<>();
+        for (String selector : selectors) {
+            try {
+                Collections.addAll(complexes, compile(selector).complexes);
+            } catch (IllegalArgumentException ignored) {
+                // not supported by the selector engine, the selector never matches
+            }
+        }
+        return new Selector(String.join(", ", selectors), complexes.toArray(new Complex[0]));
+    }
+
+    public boolean matches(XMLElement element) {
+        return specificity(element) >= 0;
+    }
+
+    /**
+     * Highest specificity among the selectors of the list matching the element, or -1 when none match.
+     * Specificities are packed as {@code ids << 20 | classes << 10 | types}.
+     */
+    int specificity(XMLElement element) {
+        int specificity = -1;
+        for (Complex complex : complexes) {
+            if (complex.specificity > specificity && complex.matches(element)) {
+                specificity = complex.specificity;
+            }
+        }
+        return specificity;
+    }
+
+    /**
+     * Rightmost compounds of the selectors of the list.
+     */
+    Compound[] subjects() {
+        Compound[] rep = new Compound[complexes.length];
+        for (int i = 0; i < complexes.length; i++) {
+            rep[i] = complexes[i].compounds[0];
+        }
+        return rep;
+    }
+
+    XMLElement first(XMLElement scope) {
+        List<XMLElement> found = select(scope, true);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    List<XMLElement> all(XMLElement scope) {
+        return select(scope, false);
+    }
+
+    private List<XMLElement> select(XMLElement scope, boolean firstOnly) {
+        List<XMLElement> rep = new ArrayList<>();
+        AncestorFilter filter = new AncestorFilter();
+        List<XMLElement> ancestors = new ArrayList<>();
+        for (XMLElement ancestor = scope.parent(); ancestor != null; ancestor = ancestor.parent()) {
+            ancestors.add(ancestor);
+        }
+        for (int i = ancestors.size() - 1; i >= 0; i--) {
+            filter.push(ancestors.get(i));
+        }
+        filter.push(scope);
+
+        List<XMLElement> elements = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        elements.add(scope);
+        positions.add(0);
+        while (!elements.isEmpty()) {
+            int top = elements.size() - 1;
+            XMLElement element = elements.get(top);
+            List<XMLElement> children = element.getChildren();
+            int position = positions.get(top);
+            if (position == children.size()) {
+                elements.remove(top);
+                positions.remove(top);
+                filter.pop(element);
+                continue;
+            }
+            positions.set(top, position + 1);
+            XMLElement child = children.get(position);
+            if (matches(child, filter)) {
+                rep.add(child);
+                if (firstOnly) {
+                    return rep;
+                }
+            }
+            if (child.hasChildren()) {
+                filter.push(child);
+                elements.add(child);
+                positions.add(0);
+            }
+        }
+        return rep;
+    }
+
+    private boolean matches(XMLElement element, AncestorFilter filter) {
+        for (Complex complex : complexes) {
+            if (filter.mayContainAll(complex.ancestorHashes) && complex.matches(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private static final class Complex {
+        final Compound[] compounds;
+        final int[] combinators;
+        final int specificity;
+        final int[] ancestorHashes;
+
+        /**
+         * @param compounds rightmost compound first
+         * @param combinators {@code combinators[i]} relates {@code compounds[i]} to its ancestor {@code compounds[i + 1]}
+         */
+        Complex(Compound[] compounds, int[] combinators) {
+            this.compounds = compounds;
+            this.combinators = combinators;
+            int specificity = 0;
+            for (Compound compound : compounds) {
+                specificity += compound.specificity();
+            }
+            this.specificity = specificity;
+            List<Integer> hashes = new ArrayList<>();
+            for (int i = 1; i < compounds.length; i++) {
+                compounds[i].addHashes(hashes);
+            }
+            this.ancestorHashes = hashes.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        boolean matches(XMLElement element) {
+            return compounds[0].matches(element) && matchesAncestors(element, 1);
+        }
+
+        private boolean matchesAncestors(XMLElement element, int index) {
+            if (index == compounds.length) {
+                return true;
+            }
+            Compound compound = compounds[index];
+            XMLElement ancestor = element.parent();
+            if (combinators[index - 1] == CHILD) {
+                return ancestor != null && compound.matches(ancestor) && matchesAncestors(ancestor, index + 1);
+            }
+            for (; ancestor != null; ancestor = ancestor.parent()) {
+                if (compound.matches(ancestor) && matchesAncestors(ancestor, index + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Compound {
+        final String tagName;
+        final String id;
+        final String[] classes;
+        final AttributeCondition[] attributes;
+
+        Compound(String tagName, String id, String[] classes, AttributeCondition[] attributes) {
+            this.tagName = tagName;
+            this.id = id;
+            this.classes = classes;
+            this.attributes = attributes;
+        }
+
+        boolean matches(XMLElement element) {
+            if (tagName != null && !tagName.equals(element.getTagName())) {
+                return false;
+            }
+            if (id != null && !id.equals(element.getOwnAttribute("id"))) {
+                return false;
+            }
+            for (String clazz : classes) {
+                if (!element.hasClass(clazz)) {
+                    return false;
+                }
+            }
+            for (AttributeCondition attribute : attributes) {
+                if (!attribute.matches(element.getOwnAttribute(attribute.name))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int specificity() {
+            return (id != null ? 1 << 20 : 0) + ((classes.length + attributes.length) << 10) + (tagName != null ? 1 : 0);
+        }
+
+        void addHashes(List<Integer> hashes) {
+            if (tagName != null) {
+                hashes.add(AncestorFilter.tagHash(tagName));
+            }
+            if (id != null) {
+                hashes.add(AncestorFilter.idHash(id));
+            }
+            for (String clazz : classes) {
+                hashes.add(AncestorFilter.classHash(clazz.hashCode()));
+            }
+        }
+    }
+
+    static final class AttributeCondition {
+        final String name;
+        final char operator;
+        final String value;
+
+        AttributeCondition(String name, char operator, String value) {
+            this.name = name;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        boolean matches(String actual) {
+            if (actual == null) {
+                return false;
+            }
+            switch (operator) {
+                case 0:
+                    return true;
+                case '=':
+                    return actual.equals(value);
+                case '~':
+                    return ClassList.parse(actual).contains(value);
+                case '|':
+                    return actual.equals(value) || actual.startsWith(value + "-");
+                case '^':
+                    return !value.isEmpty() && actual.startsWith(value);
+                case '$':
+                    return !value.isEmpty() && actual.endsWith(value);
+                case '*':
+                    return !value.isEmpty() && actual.contains(value);
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Selector parse() {
+            List<Complex> complexes = new ArrayList<>();
+            do {
+                skipWhitespace();
+                complexes.add(parseComplex());
+                skipWhitespace();
+            } while (consume(','));
+            if (position < text.length()) {
+                throw error("Unexpected '" + text.charAt(position) + "'");
+            }
+            return new Selector(text.trim(), complexes.toArray(new Complex[0]));
+        }
+
+        private Complex parseComplex() {
+            List<Compound> compounds = new ArrayList<>();
+            List<Integer> combinators = new ArrayList<>();
+            compounds.add(parseCompound());
+            while (true) {
+                boolean whitespace = skipWhitespace();
+                if (position == text.length() || text.charAt(position) == ',') {
+                    break;
+                }
+                if (consume('>')) {
+                    skipWhitespace();
+                    combinators.add(CHILD);
+                } else if (whitespace) {
+                    combinators.add(DESCENDANT);
+                } else {
+                    throw error("Unsupported combinator '" + text.charAt(position) + "'");
+                }
+                compounds.add(parseCompound());
+            }
+            Collections.reverse(compounds);
+            Collections.reverse(combinators);
+            return new Complex(compounds.toArray(new Compound[0]), combinators.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        private Compound parseCompound() {
+            int start = position;
+            String tagName = null;
+            if (consume('*')) {
+                tagName = null;
+            } else if (position < text.length() && isIdentifierChar(text.charAt(position))) {
+                tagName = identifier().toLowerCase();
+            }
+            String id = null;
+            List<String> classes = new ArrayList<>();
+            List<AttributeCondition> attributes = new ArrayList<>();
+            while (position < text.length()) {
+                if (consume('#')) {
+                    id = identifier();
+                } else if (consume('.')) {
+                    classes.add(identifier());
+                } else if (consume('[')) {
+                    attributes.add(attributeCondition());
+                } else {
+                    break;
+                }
+            }
+            if (position == start) {
+                throw error(position == text.length() ? "Missing selector" : "Unexpected '" + text.charAt(position) + "'");
+            }
+            return new Compound(tagName, id, classes.toArray(new String[0]), attributes.toArray(new AttributeCondition[0]));
+        }
+
+        private AttributeCondition attributeCondition() {
+            skipWhitespace();
+            String name = identifier();
+            skipWhitespace();
+            if (consume(']')) {
+                return new AttributeCondition(name, (char) 0, null);
+            }
+            char operator;
+            if (consume('=')) {
+                operator = '=';
+            } else if (position + 1 < text.length() && "~|^$*".indexOf(text.charAt(position)) >= 0 && text.charAt(position + 1) == '=') {
+                operator = text.charAt(position);
+                position += 2;
+            } else {
+                throw error("Invalid attribute selector");
+            }
+            skipWhitespace();
+            String value;
+            if (position < text.length() && (text.charAt(position) == '"' || text.charAt(position) == '\'')) {
+                char quote = text.charAt(position++);
+                int end = text.indexOf(quote, position);
+                if (end < 0) {
+                    throw error("Unterminated string");
+                }
+                value = text.substring(position, end);
+                position = end + 1;
+            } else {
+                value = identifier();
+            }
+            skipWhitespace();
+            if (!consume(']')) {
+                throw error("Expected ']'");
+            }
+            return new AttributeCondition(name, operator, value);
+        }
+
+        private String identifier() {
+            int start = position;
+            while (position < text.length() && isIdentifierChar(text.charAt(position))) {
+                position++;
+            }
+            if (start == position) {
+                throw error("Expected identifier");
+            }
+            return text.substring(start, position);
+        }
+
+        private static boolean isIdentifierChar(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c >= 0x80;
+        }
+
+        private boolean skipWhitespace() {
+            int start = position;
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+            return position > start;
+        }
+
+        private boolean consume(char c) {
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at index " + position + " in selector \"" + text + "\"");
+        }
+    }
+}
@@ -1,84 +1,215 @@
 package fr.feavy.xml;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 public class StyleElement extends XMLElement {
-    private List<CSSRule> rules = new ArrayList<>();
+    private RuleList rules = new RuleList(new ArrayList<>());
+    private List<CSSRule> sharedRules;
+    private RuleIndex ruleIndex;
 
     StyleElement(Map<String, String> attributes) {
         super("style", attributes);
     }
 
     public StyleElement() {
-        super("style", new HashMap<>());
+        super("style", AttributeMap.EMPTY);
     }
 
+    /**
+     * Live list of the rules of this element. Changes made through it keep the rule index up to date.
+     */
     public List<CSSRule> getRules() {
-        return rules;
+        return ownRules();
     }
 
     public void setRules(List<CSSRule> rules) {
-        this.rules = rules;
+        checkMutable();
+        load();
+        this.rules = new RuleList(rules);
+        sharedRules = null;
+        ruleIndex = null;
+        rulesChanged();
     }
 
     public CSSRule getRule(int i) {
-        return rules.get(i);
+        return ownRules().get(i);
     }
 
     public void addRule(CSSRule rule) {
-        rules.add(rule);
+        ownRules().add(rule);
     }
 
     public void removeRule(CSSRule rule) {
-        rules.remove(rule);
+        ownRules().remove(rule);
     }
 
     public void removeRule(int index) {
-        rules.remove(index);
+        ownRules().remove(index);
+    }
+
+    /**
+     * Rules of this element for reading only, which may still be the ones of the source of a copy-on-write clone.
+     */
+    List<CSSRule> rules() {
+        load();
+        return rules != null ? rules : sharedRules;
+    }
+
+    /**
+     * Rules of this element, copied from the source of a copy-on-write clone on first access
+     * since the returned rules may be modified.
+     */
+    private RuleList ownRules() {
+        load();
+        if (rules == null) {
+            rules = new RuleList(sharedRules.stream().map(CSSRule::clone).collect(Collectors.toList()));
+            sharedRules = null;
+            ruleIndex = null;
+        }
+        return rules;
+    }
+
+    /**
+     * Rules which may match the given element, in source order, found through an index of the
+     * rules by the id, class or tag name of the rightmost part of their selectors.
+     */
+    List<CSSRule> getCandidateRules(XMLElement element) {
+        if (ruleIndex == null) {
+            ruleIndex = new RuleIndex(rules());
+        }
+        return ruleIndex.candidates(element);
+    }
+
+    /**
+     * Called by an owned rule when its selectors changed.
+     */
+    void selectorsChanged() {
+        ruleIndex = null;
+        rulesChanged();
+    }
+
+    /**
+     * Notifies the tree listener, if any, that the rules of this element changed.
+     */
+    void rulesChanged() {
+        if (listener != null) {
+            listener.rulesChanged(this);
+        }
+    }
+
+    private final class RuleList extends AbstractList<CSSRule> {
+        private final List<CSSRule> rules;
+
+        RuleList(List<CSSRule> rules) {
+            this.rules = rules;
+            for (CSSRule rule : rules) {
+                rule.owner = StyleElement.this;
+            }
+        }
+
+        @Override
+        public CSSRule get(int index) {
+            return rules.get(index);
+        }
+
+        @Override
+        public int size() {
+            return rules.size();
+        }
+
+        @Override
+        public void add(int index, CSSRule rule) {
+            checkMutable();
+            rules.add(index, rule);
+            rule.owner = StyleElement.this;
+            if (ruleIndex != null && index == rules.size() - 1 && !ruleIndex.contains(rule)) {
+                ruleIndex.add(rule);
+            } else {
+                ruleIndex = null;
+            }
+            rulesChanged();
+        }
+
+        @Override
+        public CSSRule set(int index, CSSRule rule) {
+            checkMutable();
+            CSSRule previous = rules.set(index, rule);
+            release(previous);
+            rule.owner = StyleElement.this;
+            ruleIndex = null;
+            rulesChanged();
+            return previous;
+        }
+
+        @Override
+        public CSSRule remove(int index) {
+            checkMutable();
+            CSSRule previous = rules.remove(index);
+            release(previous);
+            if (ruleIndex != null && !rules.contains(previous)) {
+                ruleIndex.remove(previous);
+            }
+            rulesChanged();
+            return previous;
+        }
+
+        private void release(CSSRule rule) {
+            if (rule.owner == StyleElement.this && !rules.contains(rule)) {
+                rule.owner = null;
+            }
+        }
     }
 
     @Override
     public String getContent() {
         StringBuilder builder = new StringBuilder();
-
-        for (CSSRule rule : rules) {
-            builder.append(rule.toString(0));
+        try {
+            for (CSSRule rule : rules()) {
+                XMLWriter.pretty().writeRule(rule, 0, builder);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-
         return builder.toString();
     }
 
     @Override
     public void setContent(String text) {
         super.setContent(null);
-        this.rules = CSSRule.fromString(text);
+        setRules(CSSRule.fromString(text));
     }
 
-    public String toString(int indent) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(spaces(indent)).append("<style").append(getAttributesAsString()).append(">\n");
-        for (CSSRule rule : rules) {
-            builder.append(rule.toString(indent + 2));
-        }
-        builder.append(spaces(indent)).append("</style>\n");
-        return builder.toString();
+    @Override
+    protected boolean writeStartTag(XMLWriter writer, int indent, Appendable out) throws IOException {
+        writer.writeStyle(this, indent, out);
+        return false;
     }
 
     @Override
-    public String toString() {
-        return toString(0);
+    public StyleElement clone() {
+        StyleElement rep = new StyleElement(AttributeMap.copyOf(attributeMap()));
+        rep.setRules(rules().stream().map(CSSRule::clone).collect(Collectors.toList()));
+        return rep;
     }
 
     @Override
-    public StyleElement clone() {
-        StyleElement rep = new StyleElement(new HashMap<>(this.attributes));
-        rep.setContent(this.getContent());
-        List<CSSRule> rules = this.rules.stream().map(CSSRule::clone).collect(Collectors.toList());
-        rep.setRules(rules);
+    protected void freezeContent() {
+        for (CSSRule rule : rules()) {
+            rule.frozen = true;
+        }
+    }
+
+    @Override
+    protected StyleElement shallowCopy() {
+        StyleElement rep = (StyleElement) super.shallowCopy();
+        rep.sharedRules = rules();
+        rep.rules = null;
         return rep;
     }
 }
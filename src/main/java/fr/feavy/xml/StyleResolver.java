@@ -0,0 +1,270 @@
+package fr.feavy.xml;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes the style of the elements of a tree from the rules of its {@link StyleElement}s.
+ * <p>
+ * Matching rules are applied by increasing specificity, then in source order, and the standard
+ * inherited properties are taken from the parent style. The values {@code inherit} and
+ * {@code initial} are supported.
+ * <p>
+ * Styles are computed lazily and cached per element. The resolver listens to the mutations of
+ * the tree: a changed attribute only drops the cached styles of the element's subtree, while a
+ * change to the rules drops every cached style. Changes made directly to the maps and sets
+ * returned by {@link CSSRule} are not seen.
+ */
+public final class StyleResolver implements TreeListener {
+    static final Set<String> INHERITED = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "border-collapse", "border-spacing", "caption-side", "color", "cursor", "direction", "empty-cells",
+            "font", "font-family", "font-size", "font-style", "font-variant", "font-weight", "letter-spacing",
+            "line-height", "list-style", "list-style-image", "list-style-position", "list-style-type", "quotes",
+            "text-align", "text-indent", "text-transform", "visibility", "white-space", "word-spacing")));
+
+    private final XMLElement root;
+    private final Map<XMLElement, ComputedStyle> styles = new IdentityHashMap<>();
+    private final Map<ShareKey, ComputedStyle> shared = new HashMap<>();
+    private List<StyleElement> sheets;
+
+    /**
+     * Creates a resolver for the tree of the given root, which it keeps listening to until {@link #dispose()}.
+     */
+    public StyleResolver(XMLElement root) {
+        this.root = root;
+        root.addTreeListener(this);
+    }
+
+    /**
+     * Stops listening to the tree and drops the cached styles.
+     */
+    public synchronized void dispose() {
+        root.removeTreeListener(this);
+        invalidateAll();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the element is not part of the tree of this resolver
+     */
+    public synchronized ComputedStyle getComputedStyle(XMLElement element) {
+        ComputedStyle rep = styles.get(element);
+        if (rep != null) {
+            return rep;
+        }
+        if (!CompositeTreeListener.contains(element.listener, this)) {
+            throw new IllegalArgumentException("Element <" + element.getTagName() + "> is not part of the tree of this resolver");
+        }
+        Deque<XMLElement> pending = new ArrayDeque<>();
+        XMLElement current = element;
+        do {
+            pending.push(current);
+            current = current == root ? null : current.parent();
+            rep = current == null ? null : styles.get(current);
+        } while (current != null && rep == null);
+        while (!pending.isEmpty()) {
+            XMLElement next = pending.pop();
+            rep = compute(next, rep);
+            styles.put(next, rep);
+        }
+        return rep;
+    }
+
+    private ComputedStyle compute(XMLElement element, ComputedStyle parent) {
+        List<CSSRule> matched = matchedRules(element);
+        if (matched.isEmpty() && (parent == null || parent.isInheritedOnly())) {
+            return parent == null ? ComputedStyle.EMPTY : parent;
+        }
+        ShareKey key = new ShareKey(parent, matched);
+        ComputedStyle rep = shared.get(key);
+        if (rep == null) {
+            rep = cascade(matched, parent);
+            shared.put(key, rep);
+        }
+        return rep;
+    }
+
+    /**
+     * Rules matching the element, by increasing specificity and then in source order.
+     */
+    private List<CSSRule> matchedRules(XMLElement element) {
+        List<CSSRule> candidates = new ArrayList<>();
+        for (StyleElement sheet : sheets()) {
+            candidates.addAll(sheet.getCandidateRules(element));
+        }
+        long[] matches = new long[candidates.size()];
+        int count = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            int specificity = candidates.get(i).getSelector().specificity(element);
+            if (specificity >= 0) {
+                matches[count++] = (long) specificity << 32 | i;
+            }
+        }
+        Arrays.sort(matches, 0, count);
+        List<CSSRule> rep = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rep.add(candidates.get((int) matches[i]));
+        }
+        return rep;
+    }
+
+    private static ComputedStyle cascade(List<CSSRule> matched, ComputedStyle parent) {
+        LinkedHashMap<String, String> properties = new LinkedHashMap<>();
+        if (parent != null) {
+            for (Map.Entry<String, String> entry : parent.getProperties().entrySet()) {
+                if (INHERITED.contains(entry.getKey())) {
+                    properties.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        for (CSSRule rule : matched) {
+            for (Map.Entry<String, String> entry : rule.properties().entrySet()) {
+                String name = entry.getKey();
+                String value = entry.getValue().trim();
+                if (value.equals("inherit")) {
+                    value = parent == null ? null : parent.getPropertyValue(name);
+                } else if (value.equals("initial")) {
+                    value = null;
+                }
+                if (value == null) {
+                    properties.remove(name);
+                } else {
+                    properties.put(name, value);
+                }
+            }
+        }
+        return properties.isEmpty() ? ComputedStyle.EMPTY : new ComputedStyle(properties);
+    }
+
+    /**
+     * Style elements of the tree, in document order.
+     */
+    private List<StyleElement> sheets() {
+        if (sheets == null) {
+            sheets = new ArrayList<>();
+            Deque<XMLElement> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                XMLElement element = stack.pop();
+                if (element instanceof StyleElement) {
+                    sheets.add((StyleElement) element);
+                }
+                List<XMLElement> children = element.getChildren();
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    stack.push(children.get(i));
+                }
+            }
+        }
+        return sheets;
+    }
+
+    private void invalidateAll() {
+        styles.clear();
+        shared.clear();
+        sheets = null;
+    }
+
+    /**
+     * Drops the cached styles of a subtree. As styles are computed from the root down, a subtree
+     * whose root has no cached style has none cached at all.
+     */
+    private void invalidate(XMLElement subtree) {
+        if (!styles.containsKey(subtree)) {
+            return;
+        }
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(subtree);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            if (styles.remove(element) != null) {
+                for (XMLElement child : element.getChildren()) {
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
+    private static boolean containsStyle(XMLElement subtree) {
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(subtree);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            if (element instanceof StyleElement) {
+                return true;
+            }
+            for (XMLElement child : element.getChildren()) {
+                stack.push(child);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void attributeChanged(XMLElement element, String key, String oldValue, String newValue) {
+        invalidate(element);
+    }
+
+    @Override
+    public synchronized void attached(XMLElement subtree) {
+        if (containsStyle(subtree)) {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public synchronized void detached(XMLElement subtree) {
+        if (containsStyle(subtree)) {
+            invalidateAll();
+        } else {
+            invalidate(subtree);
+        }
+    }
+
+    @Override
+    public synchronized void rulesChanged(StyleElement style) {
+        invalidateAll();
+    }
+
+    private static final class ShareKey {
+        private final ComputedStyle parent;
+        private final List<CSSRule> rules;
+        private final int hash;
+
+        ShareKey(ComputedStyle parent, List<CSSRule> rules) {
+            this.parent = parent;
+            this.rules = rules;
+            this.hash = System.identityHashCode(parent) * 31 + rules.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ShareKey)) {
+                return false;
+            }
+            ShareKey other = (ShareKey) o;
+            if (parent != other.parent || rules.size() != other.rules.size()) {
+                return false;
+            }
+            for (int i = 0; i < rules.size(); i++) {
+                if (rules.get(i) != other.rules.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
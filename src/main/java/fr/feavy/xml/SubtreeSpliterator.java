@@ -0,0 +1,108 @@
+package fr.feavy.xml;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Pre-order spliterator over a subtree, keeping the subtrees left to visit on an explicit stack.
+ * <p>
+ * Splitting hands the first half of the pending subtrees to the new spliterator, or, when a single
+ * subtree is pending, its root and the first half of its children, so each part of a split covers
+ * whole subtrees in document order. The children of an element are only read once the traversal moves
+ * past it, so stopping at an element does not create the children of a lazily parsed one.
+ */
+final class SubtreeSpliterator implements Spliterator<XMLElement> {
+    private XMLElement single;
+    private XMLElement visited;
+    private final Deque<XMLElement> pending;
+    private long estimate;
+
+    SubtreeSpliterator(XMLElement root) {
+        this.pending = new ArrayDeque<>();
+        this.pending.push(root);
+        this.estimate = Long.MAX_VALUE;
+    }
+
+    private SubtreeSpliterator(XMLElement single, Deque<XMLElement> pending, long estimate) {
+        this.single = single;
+        this.pending = pending;
+        this.estimate = estimate;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super XMLElement> action) {
+        XMLElement element = single;
+        if (element != null) {
+            single = null;
+        } else {
+            pushChildren();
+            element = pending.pollFirst();
+            if (element == null) {
+                return false;
+            }
+            visited = element;
+        }
+        action.accept(element);
+        return true;
+    }
+
+    private void pushChildren() {
+        if (visited != null) {
+            List<XMLElement> children = visited.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                pending.addFirst(children.get(i));
+            }
+            visited = null;
+        }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super XMLElement> action) {
+        while (tryAdvance(action)) {
+            // visits the remaining elements
+        }
+    }
+
+    @Override
+    public Spliterator<XMLElement> trySplit() {
+        pushChildren();
+        XMLElement prefixSingle = single;
+        Deque<XMLElement> prefix = new ArrayDeque<>();
+        if (single == null && pending.size() == 1) {
+            XMLElement root = pending.peekFirst();
+            List<XMLElement> children = root.getChildren();
+            if (children.isEmpty()) {
+                return null;
+            }
+            pending.pollFirst();
+            prefixSingle = root;
+            int half = children.size() / 2;
+            for (int i = 0; i < children.size(); i++) {
+                (i < half ? prefix : pending).addLast(children.get(i));
+            }
+        } else {
+            if (pending.isEmpty()) {
+                return null;
+            }
+            for (int i = pending.size() / 2; i > 0; i--) {
+                prefix.addLast(pending.pollFirst());
+            }
+        }
+        single = null;
+        estimate >>>= 1;
+        return new SubtreeSpliterator(prefixSingle, prefix, estimate);
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+}
@@ -0,0 +1,152 @@
+package fr.feavy.xml;
+
+/**
+ * Canonical strings for tag names, attribute keys and class values.
+ * <p>
+ * Looking up a name that is already known does not allocate, so repetitive documents share a single
+ * instance of each name. Lookups are lock-free and a table can be shared between parsers and threads.
+ * Once {@code maxSymbols} names are known, new names are returned without being added.
+ */
+public final class SymbolTable {
+    static final int MAX_SYMBOL_LENGTH = 64;
+    private static final int DEFAULT_MAX_SYMBOLS = 16384;
+
+    private final int maxSymbols;
+    private volatile Entry[] entries = new Entry[256];
+    private int size;
+
+    public SymbolTable() {
+        this(DEFAULT_MAX_SYMBOLS);
+    }
+
+    public SymbolTable(int maxSymbols) {
+        this.maxSymbols = maxSymbols;
+    }
+
+    /**
+     * Returns the canonical instance of the given string, adding it even when the table is full.
+     */
+    public String intern(String symbol) {
+        char[] chars = symbol.toCharArray();
+        String known = find(chars, 0, chars.length, symbol.hashCode());
+        return known != null ? known : add(chars, 0, chars.length, symbol.hashCode(), true);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the canonical string for the given characters, only allocating when they are not known yet.
+     * Names longer than {@link #MAX_SYMBOL_LENGTH} are not added, but the ones added by {@link #intern(String)},
+     * such as the tags of the element factories, are still returned canonical.
+     */
+    String lookup(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        String known = find(chars, offset, length, hash);
+        if (known != null) {
+            return known;
+        }
+        return length > MAX_SYMBOL_LENGTH ? new String(chars, offset, length) : add(chars, offset, length, hash, false);
+    }
+
+    /**
+     * Returns the canonical string for a range of the given string, like {@link #lookup(char[], int, int)}.
+     */
+    String lookup(String source, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        Entry[] table = entries;
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Entry entry = table[i];
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && entry.symbol.length() == length && entry.symbol.regionMatches(0, source, offset, length)) {
+                return entry.symbol;
+            }
+        }
+        if (length > MAX_SYMBOL_LENGTH) {
+            return source.substring(offset, offset + length);
+        }
+        char[] chars = new char[length];
+        source.getChars(offset, offset + length, chars, 0);
+        return add(chars, 0, length, hash, false);
+    }
+
+    private String find(char[] chars, int offset, int length, int hash) {
+        Entry[] table = entries;
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Entry entry = table[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash == hash && entry.matches(chars, offset, length)) {
+                return entry.symbol;
+            }
+        }
+    }
+
+    private synchronized String add(char[] chars, int offset, int length, int hash, boolean pinned) {
+        String known = find(chars, offset, length, hash);
+        if (known != null) {
+            return known;
+        }
+        String symbol = new String(chars, offset, length);
+        if (size >= maxSymbols && !pinned) {
+            return symbol;
+        }
+        Entry[] table = entries;
+        if ((size + 1) * 2 > table.length) {
+            Entry[] grown = new Entry[table.length * 2];
+            for (Entry entry : table) {
+                if (entry != null) {
+                    insert(grown, entry);
+                }
+            }
+            table = grown;
+        }
+        insert(table, new Entry(symbol, hash));
+        size++;
+        entries = table;
+        return symbol;
+    }
+
+    private static void insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int i = entry.hash & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry;
+    }
+
+    private static final class Entry {
+        final String symbol;
+        final int hash;
+
+        Entry(String symbol, int hash) {
+            this.symbol = symbol;
+            this.hash = hash;
+        }
+
+        boolean matches(char[] chars, int offset, int length) {
+            if (symbol.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (symbol.charAt(i) != chars[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
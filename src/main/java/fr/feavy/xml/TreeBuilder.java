@@ -0,0 +1,115 @@
+package fr.feavy.xml;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Builds an element tree from handler events, keeping the open elements on an explicit stack.
+ * The content of an element is the text read right before its end tag.
+ */
+final class TreeBuilder implements XMLHandler {
+    private final Map<String, Function<Map<String, String>, ? extends XMLElement>> factories;
+    private final SymbolTable symbols;
+    private final Deque<XMLElement> openElements = new ArrayDeque<>();
+    private XMLElement root;
+    private XMLElement currentElement;
+    private StringBuilder currentText;
+    private ParseMetrics metrics;
+
+    /**
+     * Creates a builder for tag names canonicalized by the given symbol table.
+     */
+    TreeBuilder(ElementFactories factories, SymbolTable symbols) {
+        this.factories = factories.bind(symbols);
+        this.symbols = symbols;
+    }
+
+    /**
+     * Times attribute copies, element creation and style parsing into the given metrics.
+     */
+    void setMetrics(ParseMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    XMLElement getRoot() {
+        return root;
+    }
+
+    /**
+     * Innermost element not closed yet.
+     */
+    XMLElement getCurrentElement() {
+        return currentElement;
+    }
+
+    /**
+     * Whether the root element has been read and closed.
+     */
+    boolean isComplete() {
+        return root != null && openElements.isEmpty();
+    }
+
+    private XMLElement newElement(String tag, Map<String, String> properties) {
+        Function<Map<String, String>, ? extends XMLElement> factory = factories.get(tag);
+        XMLElement rep;
+        if (factory == null) {
+            rep = new XMLElement(tag, properties);
+        } else {
+            if (metrics != null) {
+                metrics.factoryCalls++;
+            }
+            rep = factory.apply(properties);
+        }
+        rep.readClasses(symbols);
+        return rep;
+    }
+
+    @Override
+    public void startElement(String tagName, Map<String, String> attributes) {
+        currentText = new StringBuilder();
+        XMLElement element;
+        if (metrics == null) {
+            element = newElement(tagName, AttributeMap.copyOf(attributes));
+        } else {
+            long start = System.nanoTime();
+            AttributeMap copy = AttributeMap.copyOf(attributes);
+            long copied = System.nanoTime();
+            element = newElement(tagName, copy);
+            metrics.attributeNanos += copied - start;
+            metrics.factoryNanos += System.nanoTime() - copied;
+        }
+        if (currentElement == null) {
+            root = element;
+        } else {
+            currentElement.addChild(element);
+        }
+        openElements.push(element);
+        currentElement = element;
+    }
+
+    @Override
+    public void endElement(String tagName) {
+        if (currentText.length() > 0) {
+            if (metrics != null && currentElement instanceof StyleElement) {
+                long start = System.nanoTime();
+                currentElement.setContent(currentText.toString());
+                metrics.cssNanos += System.nanoTime() - start;
+            } else {
+                currentElement.setContent(currentText.toString());
+            }
+        }
+        openElements.pop();
+        currentElement = openElements.peek();
+        currentText = new StringBuilder();
+    }
+
+    @Override
+    public void text(String text) {
+        if (currentText.length() > 0) {
+            currentText.append("\n");
+        }
+        currentText.append(text);
+    }
+}
@@ -0,0 +1,31 @@
+package fr.feavy.xml;
+
+/**
+ * Notified of the mutations made through the {@link XMLElement} API on a tree it is attached to.
+ */
+interface TreeListener {
+    void attributeChanged(XMLElement element, String key, String oldValue, String newValue);
+
+    /**
+     * Called once a subtree has been added to the tree, after the listener was set on all its elements.
+     */
+    void attached(XMLElement subtree);
+
+    /**
+     * Called when a subtree is removed from the tree, before the listener is cleared on its elements.
+     */
+    void detached(XMLElement subtree);
+
+    /**
+     * Called when the rules of a style element of the tree, or the selectors or properties of one of them, changed.
+     */
+    default void rulesChanged(StyleElement style) {
+    }
+
+    /**
+     * Index maintained for the tree, if any.
+     */
+    default ElementIndex getIndex() {
+        return null;
+    }
+}
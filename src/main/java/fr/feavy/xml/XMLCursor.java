@@ -0,0 +1,159 @@
+package fr.feavy.xml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull cursor over an XML document, created by {@link XMLParser#openReader(Reader)}.
+ * <p>
+ * Tag names, attributes and text follow the same rules as {@link XMLParser#parse(String)}.
+ * Self-closing tags produce a {@link Event#START_ELEMENT} immediately followed by an
+ * {@link Event#END_ELEMENT}, and the document ends once the root element is closed.
+ */
+public class XMLCursor implements Closeable {
+    public enum Event {
+        START_ELEMENT,
+        END_ELEMENT,
+        TEXT,
+        END_DOCUMENT
+    }
+
+    private final Reader reader;
+    private final XMLTokenizer tokenizer;
+    private Event event;
+    private String tagName;
+    private String text;
+    private int depth;
+    private boolean pendingEnd;
+
+    XMLCursor(XMLTokenizer tokenizer, Reader reader) {
+        this.tokenizer = tokenizer;
+        this.reader = reader;
+    }
+
+    public boolean hasNext() {
+        return event != Event.END_DOCUMENT;
+    }
+
+    public Event next() throws IOException {
+        if (event == Event.END_DOCUMENT) {
+            throw new NoSuchElementException();
+        }
+        if (event == Event.END_ELEMENT) {
+            depth--;
+        }
+        text = null;
+        if (pendingEnd) {
+            pendingEnd = false;
+            return event = Event.END_ELEMENT;
+        }
+        if (event != null && depth == 0) {
+            return event = Event.END_DOCUMENT;
+        }
+        while (true) {
+            int token = tokenizer.next();
+            if (token == XMLTokenizer.START_TAG) {
+                depth++;
+                tagName = tokenizer.getName();
+                pendingEnd = tokenizer.isSelfClosing();
+                return event = Event.START_ELEMENT;
+            } else if (token == XMLTokenizer.END_TAG) {
+                if (depth == 0) {
+                    throw new XMLParseException("Unexpected end tag </" + tokenizer.getName() + ">", tokenizer.getOffset());
+                }
+                tagName = tokenizer.getName();
+                return event = Event.END_ELEMENT;
+            } else if (token == XMLTokenizer.TEXT) {
+                if (depth > 0) {
+                    text = tokenizer.getText();
+                    return event = Event.TEXT;
+                }
+            } else {
+                return event = Event.END_DOCUMENT;
+            }
+        }
+    }
+
+    /**
+     * Advances to the next start or end tag, skipping text.
+     */
+    public Event nextTag() throws IOException {
+        Event next;
+        do {
+            next = next();
+        } while (next == Event.TEXT);
+        return next;
+    }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    /**
+     * Nesting level of the current element, the root element being at depth 1.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public String getTagName() {
+        if (event != Event.START_ELEMENT && event != Event.END_ELEMENT) {
+            throw new IllegalStateException("No tag name for " + event);
+        }
+        return tagName;
+    }
+
+    public String getText() {
+        if (event != Event.TEXT) {
+            throw new IllegalStateException("No text for " + event);
+        }
+        return text;
+    }
+
+    public int getAttributeCount() {
+        return event == Event.START_ELEMENT ? tokenizer.getAttributeCount() : 0;
+    }
+
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return tokenizer.getAttributeName(index);
+    }
+
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return tokenizer.getAttributeValue(index);
+    }
+
+    public String getAttribute(String name) {
+        for (int i = 0; i < getAttributeCount(); i++) {
+            if (tokenizer.getAttributeName(i).equals(name)) {
+                return tokenizer.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read-only view of the attributes of the current start element, only valid until the next event.
+     */
+    public Map<String, String> getAttributes() {
+        return event == Event.START_ELEMENT ? tokenizer.getAttributes() : Collections.emptyMap();
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (index < 0 || index >= getAttributeCount()) {
+            throw new IndexOutOfBoundsException("Attribute " + index + " of " + getAttributeCount());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
@@ -1,17 +1,40 @@
 package fr.feavy.xml;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class XMLElement implements Cloneable {
-    protected final Map<String, String> attributes;
+    /**
+     * Attributes not inherited by the trees whose root does not set others, see {@link #setNotInherited(Collection)}.
+     */
+    static final Set<String> DEFAULT_NOT_INHERITED = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("id", "class")));
+
+    private Map<String, String> attributes;
     private final String tagName;
-    private final List<XMLElement> children = new ArrayList<>();
+    private List<XMLElement> children = new ArrayList<>();
+    private XMLElement template;
+    private LazyDocument lazy;
+    private int lazyNode;
     private XMLElement parent;
     private String content = null;
+    private InheritedValues inherited;
+    private ClassList classList;
+    private boolean inheritedFrom;
+    private boolean sharedAttributes;
+    private boolean frozen;
+    /**
+     * Attributes not inherited in the tree, only read on its root, or null for the defaults.
+     */
+    Set<String> notInherited;
+    TreeListener listener;
 
     public XMLElement(String tagName, Map<String, String> attributes) {
         this.tagName = tagName;
@@ -19,15 +42,7 @@ public class XMLElement implements Cloneable {
     }
 
     public XMLElement(String tagName) {
-        this(tagName, new HashMap<>());
-    }
-
-    static String spaces(int amount) {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < amount; i++) {
-            builder.append(" ");
-        }
-        return builder.toString();
+        this(tagName, AttributeMap.EMPTY);
     }
 
     public boolean hasAttribute(String name) {
@@ -38,12 +53,58 @@ public class XMLElement implements Cloneable {
         return !attributes.isEmpty();
     }
 
+    /**
+     * Live view of the own attributes of this element for subclasses. Reading it does not copy anything
+     * and changes made through it go through {@link #setAttribute(String, String)} and
+     * {@link #removeAttribute(String)}, so they copy the attributes shared with a copy-on-write clone
+     * and keep indexes and caches up to date.
+     */
+    protected Map<String, String> getAttributes() {
+        return new AttributesView();
+    }
+
+    /**
+     * Own attributes of this element for reading only, which may be shared with other elements.
+     */
+    Map<String, String> attributeMap() {
+        return attributes;
+    }
+
     public void setAttribute(String key, String value) {
-        attributes.put(key, value);
+        checkMutable();
+        if (attributes == AttributeMap.EMPTY) {
+            attributes = new AttributeMap();
+        } else if (sharedAttributes) {
+            attributes = AttributeMap.copyOf(attributes);
+        }
+        sharedAttributes = false;
+        String oldValue = attributes.put(key, value);
+        attributeChanged(key);
+        if (listener != null) {
+            listener.attributeChanged(this, key, oldValue, value);
+        }
     }
 
     public void removeAttribute(String key) {
-        attributes.remove(key);
+        checkMutable();
+        if (attributes != AttributeMap.EMPTY && attributes.containsKey(key)) {
+            if (sharedAttributes) {
+                attributes = AttributeMap.copyOf(attributes);
+                sharedAttributes = false;
+            }
+            String oldValue = attributes.remove(key);
+            attributeChanged(key);
+            if (listener != null && oldValue != null) {
+                listener.attributeChanged(this, key, oldValue, null);
+            }
+        }
+    }
+
+    private void attributeChanged(String key) {
+        if ("class".equals(key)) {
+            classList = null;
+        }
+        inheritedChanged(key);
     }
 
     /**
@@ -55,14 +116,127 @@ public class XMLElement implements Cloneable {
         return attributes.get(key);
     }
 
+    /**
+     * Get an attribute of this element, or of its closest ancestor having it if the attribute
+     * is inherited, see {@link #setNotInherited(Collection)}.
+     */
     public String getAttribute(String key) {
         String value = attributes.get(key);
-        if (value == null && hasParent()) {
-            value = parent.getAttribute(key);
+        if (value != null || parent == null) {
+            return value;
         }
-        return value;
+        return inheritedValue(key);
     }
 
+    /**
+     * Sets the attributes for which {@link #getAttribute(String)} does not fall back to the ancestors in
+     * the tree this element is the root of. Every attribute is inherited except {@code id} and {@code class}
+     * unless the root sets others, which parsers do with {@link XMLParser#notInherited(String...)}.
+     */
+    public void setNotInherited(Collection<String> attributes) {
+        checkMutable();
+        notInherited = Collections.unmodifiableSet(new HashSet<>(attributes));
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            element.inherited = null;
+            element.inheritedFrom = false;
+            for (XMLElement child : element.children) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * Whether {@link #getAttribute(String)} falls back to the ancestors for the given attribute in the tree of this element.
+     */
+    public boolean isInherited(String attribute) {
+        XMLElement root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return !(root.notInherited != null ? root.notInherited : DEFAULT_NOT_INHERITED).contains(attribute);
+    }
+
+    /**
+     * Resolves an attribute through the ancestors, caching the result on every element walked through.
+     * The element the value was found on, or the root when none has it, is flagged so that changing
+     * the attribute there only walks down the elements holding a cached value. Whether the attribute
+     * is inherited is only checked against the root when a value is found on an ancestor, the cached
+     * values being already checked.
+     */
+    private String inheritedValue(String key) {
+        XMLElement current = this;
+        String value;
+        while (true) {
+            value = current.inherited != null ? current.inherited.get(key) : null;
+            if (value != null) {
+                break;
+            }
+            if (current.parent == null) {
+                value = InheritedValues.NONE;
+                break;
+            }
+            current = current.parent;
+            value = current.attributes.get(key);
+            if (value != null) {
+                if (!current.isInherited(key)) {
+                    value = InheritedValues.NONE;
+                }
+                break;
+            }
+        }
+        current.inheritedFrom = true;
+        for (XMLElement element = this; element != current; element = element.parent) {
+            element.inherited = InheritedValues.with(element.inherited, key, value);
+        }
+        return value == InheritedValues.NONE ? null : value;
+    }
+
+    private void inheritedChanged(String key) {
+        boolean cached = inherited != null && inherited.get(key) != null;
+        inherited = InheritedValues.without(inherited, key);
+        if (!cached && !inheritedFrom) {
+            return;
+        }
+        Deque<XMLElement> stack = new ArrayDeque<>(children);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            if (element.inherited != null && element.inherited.get(key) != null) {
+                element.inherited = InheritedValues.without(element.inherited, key);
+                for (XMLElement child : element.children) {
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the inherited values cached in a subtree which was moved.
+     */
+    private static void clearInherited(XMLElement subtree) {
+        if (subtree.inherited == null && !subtree.inheritedFrom) {
+            return;
+        }
+        subtree.inherited = null;
+        Deque<XMLElement> stack = new ArrayDeque<>(subtree.children);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            if (element.inherited != null) {
+                element.inherited = null;
+                for (XMLElement child : element.children) {
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * @deprecated not used when writing elements, which escapes attribute values if asked to;
+     * override {@link #writeStartTag(XMLWriter, int, Appendable)} to change how an element is written
+     */
+    @Deprecated
     protected String getAttributesAsString() {
         StringBuilder attributes = new StringBuilder();
         if (this.attributes.size() > 0) {
@@ -91,12 +265,95 @@ public class XMLElement implements Cloneable {
         return attribute;
     }
 
+    /**
+     * Live set of the class names of this element, parsed once from its own class attribute and kept
+     * in sync with it. Adding or removing names through it goes through {@link #addClass(String)} and
+     * {@link #removeClass(String)}, so it changes the class attribute.
+     */
     public Set<String> getClasses() {
-        String attribute = getAttribute("class");
-        if (attribute == null) {
-            return new HashSet<>();
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                Iterator<String> iterator = getClassList().iterator();
+                return new Iterator<String>() {
+                    private String last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        last = iterator.next();
+                        return last;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) {
+                            throw new IllegalStateException();
+                        }
+                        removeClass(last);
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return getClassList().size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return getClassList().contains(o);
+            }
+
+            @Override
+            public boolean add(String clazz) {
+                if (hasClass(clazz)) {
+                    return false;
+                }
+                addClass(clazz);
+                return true;
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof String) || !hasClass((String) o)) {
+                    return false;
+                }
+                removeClass((String) o);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Canonicalizes the class names of this element through the symbol table of the parser creating it.
+     */
+    void readClasses(SymbolTable symbols) {
+        String value = attributes.get("class");
+        if (value != null) {
+            classList = ClassList.parse(value, symbols);
+        }
+    }
+
+    ClassList getClassList() {
+        ClassList rep = classList;
+        if (rep == null) {
+            rep = ClassList.parse(attributes.get("class"));
+            classList = rep;
         }
-        return new HashSet<>(Arrays.asList(attribute.split(" ")));
+        return rep;
+    }
+
+    /**
+     * Tests whether the class attribute of this element contains the given class name, without allocating.
+     */
+    public boolean hasClass(String clazz) {
+        return getClassList().contains(clazz);
     }
 
     public void setClass(String clazz) {
@@ -104,34 +361,76 @@ public class XMLElement implements Cloneable {
     }
 
     public void addClass(String clazz) {
-        Set<String> classList = getClasses();
-        classList.add(clazz);
-        setAttribute("class", String.join(" ", classList));
+        if (hasClass(clazz)) {
+            return;
+        }
+        String value = attributes.get("class");
+        setAttribute("class", value == null || value.trim().isEmpty() ? clazz : value + " " + clazz);
     }
 
     public void removeClass(String clazz) {
-        Set<String> classList = getClasses();
-        if (classList.isEmpty()) {
+        ClassList classes = getClassList();
+        if (!classes.contains(clazz)) {
             return;
         }
-        classList.remove(clazz);
-        setAttribute("class", String.join(" ", classList));
+        StringJoiner joiner = new StringJoiner(" ");
+        for (int i = 0; i < classes.size(); i++) {
+            if (!classes.get(i).equals(clazz)) {
+                joiner.add(classes.get(i));
+            }
+        }
+        setAttribute("class", joiner.toString());
     }
 
     public String getTagName() {
         return this.tagName;
     }
 
+    /**
+     * Live list of the children of this element, read-only once the element is frozen by {@link #cloneShared()}.
+     */
     public List<XMLElement> getChildren() {
-        return this.children;
+        return frozen ? Collections.unmodifiableList(children) : children();
     }
 
     public List<XMLElement> getChildren(Predicate<XMLElement> predicate) {
-        return this.children.stream().filter(predicate).collect(Collectors.toList());
+        return children().stream().filter(predicate).collect(Collectors.toList());
     }
 
     public XMLElement getChild(int index) {
-        return this.children.get(index);
+        return children().get(index);
+    }
+
+    /**
+     * Children of this element, copied from the source of a copy-on-write clone on first access.
+     */
+    private List<XMLElement> children() {
+        if (lazy != null) {
+            expand();
+        }
+        XMLElement source = template;
+        if (source != null) {
+            List<XMLElement> copies = new ArrayList<>(source.children.size());
+            for (XMLElement child : source.children) {
+                XMLElement copy = child.shallowCopy();
+                copy.parent = this;
+                copy.listener = listener;
+                copies.add(copy);
+            }
+            children = copies;
+            template = null;
+        }
+        return children;
+    }
+
+    /**
+     * Read-only children of this element for traversals which neither modify the tree nor walk up
+     * from the children. The children of a copy-on-write clone not accessed yet are the ones of its
+     * source, so such traversals do not copy them.
+     */
+    List<XMLElement> childrenView() {
+        load();
+        return template != null ? template.children : children;
     }
 
     public void remove() {
@@ -139,25 +438,107 @@ public class XMLElement implements Cloneable {
     }
 
     public void removeChildren() {
+        checkMutable();
+        for (XMLElement child : children()) {
+            release(child);
+        }
         this.children.clear();
     }
 
     public void removeChild(int index) {
-        this.children.remove(index);
+        checkMutable();
+        release(children().remove(index));
     }
 
     public void removeChild(XMLElement child) {
-        this.children.remove(child);
+        checkMutable();
+        if (children().remove(child)) {
+            release(child);
+        }
     }
 
     public void addChild(int index, XMLElement child) {
-        this.children.add(index, child);
+        checkMutable();
+        children().add(index, child);
         child.parent = this;
+        clearInherited(child);
+        attach(child);
     }
 
     public void addChild(XMLElement child) {
-        this.children.add(child);
+        checkMutable();
+        children().add(child);
         child.parent = this;
+        clearInherited(child);
+        attach(child);
+    }
+
+    /**
+     * Detaches a removed child, which becomes the root of its own tree and keeps the attributes not inherited in this one.
+     */
+    private void release(XMLElement child) {
+        detach(child);
+        child.parent = null;
+        XMLElement root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        child.notInherited = root.notInherited;
+        clearInherited(child);
+    }
+
+    private void attach(XMLElement child) {
+        if (child.listener != null) {
+            detach(child);
+        }
+        if (listener != null) {
+            setListener(child, listener);
+            listener.attached(child);
+        }
+    }
+
+    private static void detach(XMLElement child) {
+        if (child.listener != null) {
+            child.listener.detached(child);
+            setListener(child, null);
+        }
+    }
+
+    static void setListener(XMLElement subtree, TreeListener listener) {
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(subtree);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            element.listener = listener;
+            for (XMLElement child : element.children) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * Indexes this tree by id, tag name and class. Lookups then avoid walking the tree
+     * and the index is kept up to date by the mutation methods of the elements.
+     */
+    public void buildIndex() {
+        if (isIndexed()) {
+            return;
+        }
+        ElementIndex index = new ElementIndex(this);
+        index.addAll(this);
+        addTreeListener(index);
+    }
+
+    void addTreeListener(TreeListener added) {
+        setListener(this, CompositeTreeListener.add(listener, added));
+    }
+
+    void removeTreeListener(TreeListener removed) {
+        setListener(this, CompositeTreeListener.remove(listener, removed));
+    }
+
+    public boolean isIndexed() {
+        return listener != null && listener.getIndex() != null;
     }
 
     public void addChildren(Collection<XMLElement> childs) {
@@ -167,7 +548,10 @@ public class XMLElement implements Cloneable {
     }
 
     public boolean hasChildren() {
-        return !children.isEmpty();
+        if (lazy != null) {
+            return lazy.hasChildren(lazyNode);
+        }
+        return !childrenView().isEmpty();
     }
 
     @Override
@@ -176,31 +560,42 @@ public class XMLElement implements Cloneable {
     }
 
     public String toString(int indent) {
-        StringBuilder builder = new StringBuilder();
-        if (content == null && children.size() == 0) {
-            return builder.append(spaces(indent)).append("<").append(tagName).append(getAttributesAsString()).append(" />\n").toString();
-        }
-        builder.append(spaces(indent)).append("<").append(tagName).append(getAttributesAsString()).append(">");
-        if (content != null && content.trim().length() > 0) {
-            builder.append("\n").append(content);
-        } else {
-            builder.append("\n");
-            for (XMLElement element : children) {
-                builder.append(element.toString(indent + 2));
-            }
-            builder.append(spaces(indent));
-        }
-        builder.append("</").append(tagName).append(">\n");
-        return builder.toString();
+        return XMLWriter.pretty().toString(this, indent);
+    }
+
+    /**
+     * Writes the start tag of this element, or the whole element when it has no children to write,
+     * and returns whether its children and end tag are still to be written by the writer. Called for
+     * every element written, at any depth; subclasses override it to write themselves in their own format.
+     */
+    protected boolean writeStartTag(XMLWriter writer, int indent, Appendable out) throws IOException {
+        return writer.writeStartTag(this, indent, out);
+    }
+
+    /**
+     * Writes this element in the format of {@link #toString()}, see {@link XMLWriter} for other formats.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        XMLWriter.pretty().write(this, out);
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        XMLWriter.pretty().write(this, out);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        XMLWriter.pretty().write(this, out);
     }
 
     public XMLElement getElementById(String id) {
-        if (id.equals(this.getId())) {
-            return this;
+        ElementIndex index = listener != null ? listener.getIndex() : null;
+        if (index != null) {
+            return index.getElementById(this, id);
         }
-        XMLElement element;
-        for (XMLElement child : children) {
-            if ((element = child.getElementById(id)) != null) {
+        Iterator<XMLElement> iterator = depthFirstIterator();
+        while (iterator.hasNext()) {
+            XMLElement element = iterator.next();
+            if (id.equals(element.getOwnAttribute("id"))) {
                 return element;
             }
         }
@@ -208,27 +603,67 @@ public class XMLElement implements Cloneable {
     }
 
     public List<XMLElement> getElementsByTagName(String tagName) {
+        ElementIndex index = listener != null ? listener.getIndex() : null;
+        if (index != null) {
+            return index.getElementsByTagName(this, tagName);
+        }
         List<XMLElement> rep = new ArrayList<>();
-        for (XMLElement child : children) {
-            if (child.tagName.equals(tagName)) {
-                rep.add(child);
+        Iterator<XMLElement> iterator = depthFirstIterator();
+        iterator.next();
+        while (iterator.hasNext()) {
+            XMLElement element = iterator.next();
+            if (element.tagName.equals(tagName)) {
+                rep.add(element);
             }
-            rep.addAll(child.getElementsByTagName(tagName));
         }
         return rep;
     }
 
     public List<XMLElement> getElementsByClassName(String clazz) {
+        ElementIndex index = listener != null ? listener.getIndex() : null;
+        if (index != null) {
+            return index.getElementsByClassName(this, clazz);
+        }
         List<XMLElement> rep = new ArrayList<>();
-        for (XMLElement child : children) {
-            if (child.getClasses().contains(clazz)) {
-                rep.add(child);
+        Iterator<XMLElement> iterator = depthFirstIterator();
+        iterator.next();
+        while (iterator.hasNext()) {
+            XMLElement element = iterator.next();
+            if (element.hasClass(clazz)) {
+                rep.add(element);
             }
-            rep.addAll(child.getElementsByTagName(tagName));
         }
         return rep;
     }
 
+    /**
+     * First descendant of this element matching the given selector, in document order.
+     *
+     * @throws IllegalArgumentException if the selector is invalid or unsupported
+     * @see Selector
+     */
+    public XMLElement querySelector(String selector) {
+        return querySelector(Selector.compile(selector));
+    }
+
+    public XMLElement querySelector(Selector selector) {
+        return selector.first(this);
+    }
+
+    /**
+     * Descendants of this element matching the given selector, in document order.
+     *
+     * @throws IllegalArgumentException if the selector is invalid or unsupported
+     * @see Selector
+     */
+    public List<XMLElement> querySelectorAll(String selector) {
+        return querySelectorAll(Selector.compile(selector));
+    }
+
+    public List<XMLElement> querySelectorAll(Selector selector) {
+        return selector.all(this);
+    }
+
     public boolean hasParent() {
         return parent != null;
     }
@@ -238,37 +673,299 @@ public class XMLElement implements Cloneable {
     }
 
     public String getContent() {
+        load();
         return content;
     }
 
     public void setContent(String content) {
+        checkMutable();
+        load();
         this.content = content;
     }
 
-    public void visitDeep(Consumer<XMLElement> consumer) {
-        consumer.accept(this);
-        for (XMLElement child : children) {
-            consumer.accept(child);
-            child.visitDeep(consumer);
+    /**
+     * Marks this element as created by a lazy parse, its children and content being read from the document on first access.
+     */
+    void readLazily(LazyDocument document, int node) {
+        lazy = document;
+        lazyNode = node;
+    }
+
+    /**
+     * Reads the children and content of this element if it was lazily parsed and they were not accessed yet.
+     */
+    void load() {
+        if (lazy != null) {
+            expand();
         }
     }
 
+    private void expand() {
+        LazyDocument document = lazy;
+        lazy = null;
+        for (int node = document.firstChild(lazyNode); node >= 0; node = document.nextSibling(node)) {
+            XMLElement child = document.create(node);
+            child.parent = this;
+            child.listener = listener;
+            children.add(child);
+        }
+        String text = document.content(lazyNode);
+        if (text != null) {
+            // reading the content is not a change of the tree, listeners are not notified
+            TreeListener current = listener;
+            listener = null;
+            setContent(text);
+            listener = current;
+        }
+    }
+
+    /**
+     * Calls the consumer once for this element and each of its descendants, in document order.
+     */
+    public void visitDeep(Consumer<XMLElement> consumer) {
+        depthFirstIterator().forEachRemaining(consumer);
+    }
+
+    /**
+     * Calls the consumer for each descendant of this element in document order, along with the iterator
+     * over its siblings, which can be used to remove it. The children of a removed element are not visited.
+     */
     public void visitDeep(BiConsumer<XMLElement, Iterator<XMLElement>> consumer) {
-        Iterator<XMLElement> iterator = children.iterator();
-        while (iterator.hasNext()) {
+        Deque<Iterator<XMLElement>> stack = new ArrayDeque<>();
+        stack.push(getChildren().iterator());
+        while (!stack.isEmpty()) {
+            Iterator<XMLElement> iterator = stack.peek();
+            if (!iterator.hasNext()) {
+                stack.pop();
+                continue;
+            }
             XMLElement child = iterator.next();
             consumer.accept(child, iterator);
-            child.visitDeep(consumer);
+            stack.push(child.getChildren().iterator());
         }
     }
 
+    /**
+     * Iterates over this element and its descendants in document order, depth first.
+     */
+    public Iterator<XMLElement> depthFirstIterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * Iterates over this element and its descendants level by level.
+     */
+    public Iterator<XMLElement> breadthFirstIterator() {
+        return new BreadthFirstIterator(this);
+    }
+
+    /**
+     * Spliterator over this element and its descendants in document order, splitting at subtrees.
+     */
+    public Spliterator<XMLElement> spliterator() {
+        return new SubtreeSpliterator(this);
+    }
+
+    /**
+     * Stream of this element and its descendants in document order.
+     */
+    public Stream<XMLElement> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Parallel stream of this element and its descendants, split at subtrees. The tree must not be modified
+     * while streamed, and lazily parsed or copy-on-write trees must have been fully read beforehand since
+     * reading them creates elements.
+     */
+    public Stream<XMLElement> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     @Override
     public XMLElement clone() {
-        XMLElement rep = new XMLElement(this.tagName, new HashMap<>(this.attributes));
+        XMLElement rep = new XMLElement(this.tagName, AttributeMap.copyOf(this.attributes));
+        rep.notInherited = notInherited;
         rep.setContent(this.getContent());
-        for (XMLElement child : children) {
+        for (XMLElement child : children()) {
             rep.addChild(child.clone());
         }
         return rep;
     }
+
+    /**
+     * Copy-on-write clone of this element. The copy shares the subtree, attributes and style rules of
+     * this element: children are copied one level at a time when first accessed, attributes and rules
+     * when first modified, so cloning a template and editing a few of its elements only copies the
+     * path to them. Unlike {@link #clone()}, the copies keep the type of the elements they copy.
+     * <p>
+     * The first call freezes this element and its descendants: they stay readable, even from several
+     * threads, but modifying them throws an {@link IllegalStateException}. Subclasses keeping their own
+     * mutable state take part through {@link #freezeContent()} and {@link #shallowCopy()}.
+     */
+    public XMLElement cloneShared() {
+        if (!frozen) {
+            freeze();
+        }
+        return shallowCopy();
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void freeze() {
+        Deque<XMLElement> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            XMLElement element = stack.pop();
+            // a lazily parsed element is read first since reading it sets its children and content
+            element.load();
+            element.frozen = true;
+            element.freezeContent();
+            for (XMLElement child : element.children()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * Called by {@link #cloneShared()} when this element is frozen. Subclasses keeping mutable state
+     * besides attributes, content and children override it to make that state read-only, and call
+     * {@link #checkMutable()} from the methods modifying it.
+     */
+    protected void freezeContent() {
+    }
+
+    /**
+     * Copy of this frozen element sharing its attributes, with the children left to be copied on first access.
+     * <p>
+     * The copy is made with {@link Object#clone()}, so it has the class of this element but its constructor
+     * is not called and the fields of subclasses are shared with this element. Subclasses keeping mutable
+     * state override this method to give the copy its own state, or state it only copies on first write.
+     */
+    protected XMLElement shallowCopy() {
+        XMLElement rep;
+        try {
+            rep = (XMLElement) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        rep.children = Collections.emptyList();
+        rep.template = this;
+        rep.parent = null;
+        rep.listener = null;
+        rep.inherited = null;
+        rep.inheritedFrom = false;
+        rep.sharedAttributes = true;
+        rep.frozen = false;
+        return rep;
+    }
+
+    /**
+     * @throws IllegalStateException if this element is frozen by {@link #cloneShared()}
+     */
+    protected void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("<" + tagName + "> is shared by copy-on-write clones");
+        }
+    }
+
+    private final class AttributesView extends AbstractMap<String, String> {
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return Collections.unmodifiableMap(attributes).entrySet();
+        }
+
+        @Override
+        public int size() {
+            return attributes.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return attributes.containsKey(key);
+        }
+
+        @Override
+        public String get(Object key) {
+            return attributes.get(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String previous = attributes.get(key);
+            setAttribute(key, value);
+            return previous;
+        }
+
+        @Override
+        public String remove(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            String previous = attributes.get(key);
+            removeAttribute((String) key);
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            for (String key : new ArrayList<>(attributes.keySet())) {
+                removeAttribute(key);
+            }
+        }
+    }
+
+    /**
+     * Immutable key and value pairs of the inherited attributes resolved for an element,
+     * replaced as a whole so concurrent readers of an unchanging tree always see a consistent array.
+     */
+    private static final class InheritedValues {
+        /**
+         * Marks an attribute that none of the ancestors has.
+         */
+        static final String NONE = new String();
+
+        final String[] entries;
+
+        InheritedValues(String[] entries) {
+            this.entries = entries;
+        }
+
+        String get(String key) {
+            for (int i = 0; i < entries.length; i += 2) {
+                if (entries[i].equals(key)) {
+                    return entries[i + 1];
+                }
+            }
+            return null;
+        }
+
+        static InheritedValues with(InheritedValues values, String key, String value) {
+            InheritedValues rest = without(values, key);
+            String[] entries = rest == null ? new String[2] : Arrays.copyOf(rest.entries, rest.entries.length + 2);
+            entries[entries.length - 2] = key;
+            entries[entries.length - 1] = value;
+            return new InheritedValues(entries);
+        }
+
+        static InheritedValues without(InheritedValues values, String key) {
+            if (values == null || values.get(key) == null) {
+                return values;
+            }
+            if (values.entries.length == 2) {
+                return null;
+            }
+            String[] entries = new String[values.entries.length - 2];
+            int j = 0;
+            for (int i = 0; i < values.entries.length; i += 2) {
+                if (!values.entries[i].equals(key)) {
+                    entries[j++] = values.entries[i];
+                    entries[j++] = values.entries[i + 1];
+                }
+            }
+            return new InheritedValues(entries);
+        }
+    }
 }
@@ -0,0 +1,24 @@
+package fr.feavy.xml;
+
+import java.util.Map;
+
+/**
+ * Receives the elements of a document as {@link XMLParser} reads them, without building a tree.
+ * Self-closing tags are reported as a start immediately followed by an end.
+ */
+public interface XMLHandler {
+    /**
+     * Called for each start tag. The attribute map is a read-only view that is only valid during the call.
+     */
+    default void startElement(String tagName, Map<String, String> attributes) {
+    }
+
+    default void endElement(String tagName) {
+    }
+
+    /**
+     * Called for each text run, trimmed the same way as element content.
+     */
+    default void text(String text) {
+    }
+}
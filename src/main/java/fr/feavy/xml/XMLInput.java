@@ -0,0 +1,124 @@
+package fr.feavy.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * Turns a byte stream into a reader, picking the charset from the byte order mark,
+ * then from the encoding of the XML declaration, and defaulting to UTF-8.
+ */
+final class XMLInput {
+    static final int PROLOG_LIMIT = 512;
+
+    private XMLInput() {
+    }
+
+    static Reader newReader(InputStream inputStream) throws IOException {
+        PushbackInputStream input = new PushbackInputStream(inputStream, PROLOG_LIMIT);
+        byte[] prolog = new byte[PROLOG_LIMIT];
+        int length = readProlog(input, prolog);
+        int bom = bomLength(prolog, length);
+        input.unread(prolog, bom, length - bom);
+        return new InputStreamReader(input, detectCharset(prolog, length));
+    }
+
+    /**
+     * Charset of a document starting with the given bytes.
+     */
+    static Charset detectCharset(byte[] prolog, int length) throws UnsupportedEncodingException {
+        if (length >= 3 && (prolog[0] & 0xFF) == 0xEF && (prolog[1] & 0xFF) == 0xBB && (prolog[2] & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        } else if (length >= 2 && (prolog[0] & 0xFF) == 0xFE && (prolog[1] & 0xFF) == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        } else if (length >= 2 && (prolog[0] & 0xFF) == 0xFF && (prolog[1] & 0xFF) == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        } else if (length >= 2 && prolog[0] == '<' && prolog[1] == 0) {
+            return StandardCharsets.UTF_16LE;
+        } else if (length >= 2 && prolog[0] == 0 && prolog[1] == '<') {
+            return StandardCharsets.UTF_16BE;
+        }
+        return declaredCharset(prolog, length);
+    }
+
+    /**
+     * Number of leading bytes taken by a byte order mark.
+     */
+    static int bomLength(byte[] prolog, int length) {
+        if (length >= 3 && (prolog[0] & 0xFF) == 0xEF && (prolog[1] & 0xFF) == 0xBB && (prolog[2] & 0xFF) == 0xBF) {
+            return 3;
+        }
+        if (length >= 2 && ((prolog[0] & 0xFF) == 0xFE && (prolog[1] & 0xFF) == 0xFF
+                || (prolog[0] & 0xFF) == 0xFF && (prolog[1] & 0xFF) == 0xFE)) {
+            return 2;
+        }
+        return 0;
+    }
+
+    private static int readProlog(InputStream input, byte[] prolog) throws IOException {
+        int length = 0;
+        while (length < prolog.length) {
+            int read = input.read(prolog, length, prolog.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+            if (length >= 5 && indexOf(prolog, 5, "<?xml") != 0 || indexOf(prolog, length, "?>") >= 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reads the encoding pseudo-attribute of an ASCII compatible XML declaration.
+     */
+    private static Charset declaredCharset(byte[] prolog, int length) throws UnsupportedEncodingException {
+        if (indexOf(prolog, length, "<?xml") != 0) {
+            return StandardCharsets.UTF_8;
+        }
+        int end = indexOf(prolog, length, "?>");
+        int index = indexOf(prolog, end < 0 ? length : end, "encoding");
+        if (index < 0) {
+            return StandardCharsets.UTF_8;
+        }
+        index += "encoding".length();
+        while (index < length && (prolog[index] == ' ' || prolog[index] == '=')) {
+            index++;
+        }
+        if (index >= length || (prolog[index] != '"' && prolog[index] != '\'')) {
+            return StandardCharsets.UTF_8;
+        }
+        byte quote = prolog[index++];
+        int start = index;
+        while (index < length && prolog[index] != quote) {
+            index++;
+        }
+        String name = new String(prolog, start, index - start, StandardCharsets.US_ASCII);
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(name);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, int length, String ascii) {
+        outer:
+        for (int i = 0; i + ascii.length() <= length; i++) {
+            for (int j = 0; j < ascii.length(); j++) {
+                if (bytes[i + j] != ascii.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,19 @@
+package fr.feavy.xml;
+
+public class XMLParseException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+
+    public XMLParseException(String message, long offset) {
+        super(message + " at offset " + offset);
+        this.offset = offset;
+    }
+
+    /**
+     * Character offset in the parsed document where the error was detected.
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
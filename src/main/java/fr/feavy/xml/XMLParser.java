@@ -1,161 +1,370 @@
 package fr.feavy.xml;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.ListIterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Parses XML documents into {@link XMLElement} trees.
+ * <p>
+ * A parser only holds its factory configuration and keeps all parsing state per call,
+ * so a configured parser can be shared between threads.
+ */
 public class XMLParser {
-    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("(?<key>[:a-zA-Z0-9_-]+)=\"(?<value>[^\"]*)\"");
-    private ListIterator<String> iterator;
-    private String tag = null;
-    private Map<String, String> properties = new HashMap<>();
-    private boolean isEndTag = false;
-    private boolean isStartAndEndTag = false;
-    private StringBuilder currentText;
-    private XMLElement currentElement;
-    private final Map<String, Function<Map<String, String>, ? extends XMLElement>> elementFactories = new HashMap<>();
+    private volatile ElementFactories elementFactories;
+    private final SymbolTable symbols;
+    private volatile boolean indexed;
+    private volatile boolean lazy;
+    private volatile ParseListener parseListener;
+    private volatile Set<String> notInherited = XMLElement.DEFAULT_NOT_INHERITED;
+
     public XMLParser() {
-        with("style", StyleElement::new);
+        this(ElementFactories.defaults());
+    }
+
+    public XMLParser(ElementFactories elementFactories) {
+        this(elementFactories, new SymbolTable());
+    }
+
+    /**
+     * Creates a parser canonicalizing names through the given symbol table, which may be shared with other parsers.
+     */
+    public XMLParser(ElementFactories elementFactories, SymbolTable symbols) {
+        this.elementFactories = elementFactories;
+        this.symbols = symbols;
+    }
+
+    public synchronized XMLParser with(String tag, Function<Map<String, String>, ? extends XMLElement> factory) {
+        this.elementFactories = elementFactories.with(tag, factory);
+        return this;
+    }
+
+    /**
+     * Whether parsed trees are indexed by id, tag name and class, see {@link XMLElement#buildIndex()}.
+     */
+    public XMLParser indexed(boolean indexed) {
+        this.indexed = indexed;
+        return this;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Whether {@link #parse(String)} only reads the structure of the document up front. Elements are
+     * then created when the children or content of their parent are first accessed, so reading a small
+     * part of a large document only pays for that part. Lazily parsed trees must not be read from
+     * several threads before being fully read. Indexing a tree reads all of it.
+     */
+    public XMLParser lazy(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Sets the listener receiving the metrics of every tree built from a string, a stream or a file,
+     * or null to remove it. Lazy parses are not measured. Parses are also measured while the
+     * {@code fr.feavy.xml.Parse} Flight Recorder event is enabled, and are not timed at all otherwise.
+     */
+    public XMLParser parseListener(ParseListener parseListener) {
+        this.parseListener = parseListener;
+        return this;
+    }
+
+    public ParseListener getParseListener() {
+        return parseListener;
     }
 
-    public XMLParser with(String tag, Function<Map<String, String>, ? extends XMLElement> factory) {
-        this.elementFactories.put(tag.toLowerCase(), factory);
+    /**
+     * Sets the attributes for which {@link XMLElement#getAttribute(String)} does not fall back to the ancestors
+     * in the trees parsed from now on, {@code id} and {@code class} by default. The setting is carried by the
+     * root of every parsed tree, see {@link XMLElement#setNotInherited(Collection)}.
+     */
+    public XMLParser notInherited(String... attributes) {
+        this.notInherited = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(attributes)));
         return this;
     }
 
+    public Set<String> getNotInherited() {
+        return notInherited;
+    }
+
     public XMLParser set(String tag, Function<Map<String, String>, ? extends XMLElement> factory) {
         return with(tag, factory);
     }
 
+    /**
+     * Current factory configuration, which can be used to create other parsers.
+     */
+    public ElementFactories getElementFactories() {
+        return elementFactories;
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
+
+    /**
+     * Parses every file on the given executor. The futures are returned in the order of the paths.
+     */
+    public List<CompletableFuture<XMLElement>> parseAll(Collection<Path> paths, Executor executor) {
+        List<CompletableFuture<XMLElement>> futures = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            futures.add(submit(() -> parse(path), executor));
+        }
+        return futures;
+    }
+
+    /**
+     * Parses every stream on the given executor and closes it once parsed.
+     * The futures are returned in the order of the streams.
+     */
+    public List<CompletableFuture<XMLElement>> parseAllStreams(Collection<? extends InputStream> inputStreams, Executor executor) {
+        List<CompletableFuture<XMLElement>> futures = new ArrayList<>(inputStreams.size());
+        for (InputStream inputStream : inputStreams) {
+            futures.add(submit(() -> {
+                try (InputStream input = inputStream) {
+                    return parse(input);
+                }
+            }, executor));
+        }
+        return futures;
+    }
+
+    private static CompletableFuture<XMLElement> submit(Callable<XMLElement> task, Executor executor) {
+        CompletableFuture<XMLElement> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Parses a byte stream incrementally. The charset is taken from the byte order mark or the XML
+     * declaration and defaults to UTF-8. The stream is not closed.
+     */
+    public XMLElement parse(InputStream inputStream) throws IOException {
+        return parse(XMLInput.newReader(inputStream));
+    }
 
+    /**
+     * Parses a byte stream incrementally using the given charset. The stream is not closed.
+     */
+    public XMLElement parse(InputStream inputStream, Charset charset) throws IOException {
+        return parse(new InputStreamReader(inputStream, charset));
+    }
 
-    private static String inputStreamToString(InputStream inputStream) {
-        StringBuilder strBuilder = new StringBuilder();
-        String line;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-            while ((line = reader.readLine()) != null) {
-                strBuilder.append(line).append("\n");
+    /**
+     * Parses a file. UTF-8 files are memory-mapped and decoded window by window,
+     * other encodings are read as a stream.
+     */
+    public XMLElement parse(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer prolog = ByteBuffer.allocate(XMLInput.PROLOG_LIMIT);
+            while (prolog.hasRemaining() && channel.read(prolog, prolog.position()) > 0) {
+                // read the prolog without moving the channel position
+            }
+            Charset charset = XMLInput.detectCharset(prolog.array(), prolog.position());
+            if (!StandardCharsets.UTF_8.equals(charset)) {
+                try (InputStream inputStream = Files.newInputStream(path)) {
+                    return parse(inputStream);
+                }
             }
-        } catch (IOException ignored) { }
-        return strBuilder.toString();
+            int bom = XMLInput.bomLength(prolog.array(), prolog.position());
+            return parse(new MappedFileReader(channel, bom, MappedFileReader.WINDOW_SIZE));
+        }
     }
 
-    public XMLElement parse(InputStream inputStream) {
-        return parse(inputStreamToString(inputStream));
+    /**
+     * Parses a character stream incrementally. The reader is not closed.
+     */
+    public XMLElement parse(Reader reader) throws IOException {
+        return build(new XMLTokenizer(reader, symbols));
     }
 
     public XMLElement parse(String fileContent) {
-        fileContent = fileContent.replaceAll(">(.*)<", ">\n$1\n<")
-                .replaceAll(">(.)", ">\n$1")
-                .replaceAll("(.)<", "$1\n<");
-        String[] lines = fileContent.split("\n");
-        for(int i = 0; i < lines.length; i++) {
-            lines[i] = lines[i].trim();
+        if (lazy) {
+            return finish(LazyDocument.parse(fileContent, elementFactories, symbols));
+        }
+        try {
+            return build(new XMLTokenizer(fileContent, symbols));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        iterator = Arrays.asList(lines).listIterator();
-        return parseElement();
     }
 
-    private XMLElement newElement(String tag, Map<String, String> properties) {
-        tag = tag.toLowerCase();
-        Function<Map<String, String>, ? extends XMLElement> factory = elementFactories.get(tag);
-        if(factory == null) {
-            return new XMLElement(tag, properties);
+    /**
+     * Parses a document which is then kept in sync with edits of its source, reparsing only the edited elements.
+     */
+    public EditableDocument parseEditable(String fileContent) {
+        return new EditableDocument(fileContent, elementFactories, symbols, indexed, notInherited);
+    }
+
+    /**
+     * Parses the given content and reports its elements to the handler without building a tree.
+     */
+    public void parse(String content, XMLHandler handler) {
+        try {
+            drive(new XMLCursor(new XMLTokenizer(content, symbols), null), handler);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return factory.apply(properties);
     }
 
-    private XMLElement parseElement() {
-        if (!iterator.hasNext()) {
-            return currentElement;
+    /**
+     * Reads the given reader and reports its elements to the handler without building a tree.
+     * The reader is not closed.
+     */
+    public void parse(Reader reader, XMLHandler handler) throws IOException {
+        drive(new XMLCursor(new XMLTokenizer(reader, symbols), null), handler);
+    }
+
+    /**
+     * Streams the document and materializes every element with the given tag name, one at a time.
+     * Elements are built with the registered factories and discarded once the consumer returns.
+     */
+    public void forEach(Reader reader, String tagName, Consumer<? super XMLElement> consumer) throws IOException {
+        String tag = tagName.toLowerCase();
+        forEach(reader, (name, attributes) -> name.equals(tag), consumer);
+    }
+
+    /**
+     * Streams the document and materializes every element accepted by the selector, one at a time.
+     * Elements nested in an already selected element are part of its subtree and not reported separately.
+     */
+    public void forEach(Reader reader, BiPredicate<String, Map<String, String>> selector, Consumer<? super XMLElement> consumer) throws IOException {
+        Set<String> notInherited = this.notInherited;
+        parse(reader, new SelectiveHandler(elementFactories, symbols, selector, element -> {
+            element.notInherited = notInherited;
+            consumer.accept(element);
+        }));
+    }
+
+    /**
+     * Opens a pull cursor over the given reader. Elements are read on demand,
+     * so memory use only grows with the nesting depth of the document.
+     */
+    public XMLCursor openReader(Reader reader) {
+        return new XMLCursor(new XMLTokenizer(reader, symbols), reader);
+    }
+
+    /**
+     * Rebuilds a tree written by {@link XMLSnapshot#write(XMLElement, OutputStream)}, creating its
+     * elements with the registered factories. The stream is not closed.
+     */
+    public XMLElement readSnapshot(InputStream inputStream) throws IOException {
+        return finish(XMLSnapshot.read(inputStream, elementFactories, symbols));
+    }
+
+    private XMLElement build(XMLTokenizer tokenizer) throws IOException {
+        TreeBuilder builder = new TreeBuilder(elementFactories, symbols);
+        XMLCursor cursor = new XMLCursor(tokenizer, null);
+        ParseListener listener = parseListener;
+        if (listener == null && !ParseEvent.isTypeEnabled()) {
+            drive(cursor, builder);
+            return finish(builder);
         }
-        readTag();
-        if (tag != null) {
-            if (!isEndTag) {
-                currentText = new StringBuilder();
-                if (currentElement == null) {
-                    currentElement = newElement(tag, properties);
-                } else {
-                    XMLElement parent = currentElement;
-                    XMLElement child = newElement(tag, properties);
-                    if (!isStartAndEndTag) {
-                        currentElement = child;
-                    }
-                    parent.addChild(child);
-                }
-            } else {
-                if (currentText != null) {
-                    String text = currentText.toString();
-                    if (text.length() > 0) {
-                        currentElement.setContent(text);
-                    }
-                }
-                if (currentElement.parent() == null) {
-                    return currentElement;
-                }
-                currentElement = currentElement.parent();
-                currentText = new StringBuilder();
-            }
-        } else {
-            String text = iterator.next();
-            if (text.length() > 0) {
-                if(currentText.length() > 0) {
-                    currentText.append("\n");
-                }
-                currentText.append(text);
-            }
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        long start = System.nanoTime();
+        ParseMetrics metrics = new ParseMetrics();
+        builder.setMetrics(metrics);
+        drive(cursor, builder, metrics);
+        XMLElement rep = finish(builder);
+        metrics.totalNanos = System.nanoTime() - start;
+        if (event.shouldCommit()) {
+            event.set(metrics);
+            event.commit();
+        }
+        if (listener != null) {
+            listener.parsed(metrics);
         }
-        return parseElement();
+        return rep;
     }
 
-    private void readTag() {
-        tag = null;
+    private XMLElement finish(TreeBuilder builder) {
+        return finish(builder.getRoot());
+    }
 
-        String line = iterator.next();
-        if (line.length() > 0 && line.charAt(0) == '<') {
-            StringBuilder allLine = new StringBuilder(line);
-            while (line.charAt(line.length() - 1) != '>') {
-                line = iterator.next();
-                allLine.append(" ").append(line);
-            }
-            line = allLine.toString();
-            // New tag
-            int index = line.indexOf(" ");
-            if (index < 0) {
-                index = line.indexOf(">");
-                if(index-1 >= 0 && line.charAt(index-1) == '/') {
-                    index--;
-                }
-            }
-            if (index < 0) {
-                index = line.indexOf("/");
-            }
-            if (index < 0) {
-                index = line.indexOf("\n");
+    private XMLElement finish(XMLElement root) {
+        if (root == null) {
+            return null;
+        }
+        root.notInherited = notInherited;
+        if (indexed) {
+            root.buildIndex();
+        }
+        return root;
+    }
+
+    /**
+     * Drives the handler like {@link #drive(XMLCursor, XMLHandler)} while counting and timing the tokens.
+     */
+    private static void drive(XMLCursor cursor, XMLHandler handler, ParseMetrics metrics) throws IOException {
+        while (true) {
+            long start = System.nanoTime();
+            XMLCursor.Event event = cursor.next();
+            metrics.tokenizeNanos += System.nanoTime() - start;
+            if (event == XMLCursor.Event.END_DOCUMENT) {
+                return;
             }
-            tag = line.substring(1, index);
-            isEndTag = tag.charAt(0) == '/';
-            isStartAndEndTag = !isEndTag && line.charAt(line.length() - 2) == '/';
-            if (isEndTag) {
-                tag = tag.substring(1);
+            if (event == XMLCursor.Event.START_ELEMENT) {
+                metrics.elementCount++;
+                metrics.attributeCount += cursor.getAttributeCount();
+                metrics.maxDepth = Math.max(metrics.maxDepth, cursor.getDepth());
+                handler.startElement(cursor.getTagName(), cursor.getAttributes());
+            } else if (event == XMLCursor.Event.END_ELEMENT) {
+                handler.endElement(cursor.getTagName());
+            } else {
+                metrics.textLength += cursor.getText().length();
+                handler.text(cursor.getText());
             }
-            if (!isEndTag) {
-                properties = new HashMap<>();
-                Matcher matcher = ATTRIBUTE_PATTERN.matcher(line);
-                while (matcher.find()) {
-                    properties.put(matcher.group("key"), matcher.group("value"));
-                }
+        }
+    }
+
+    private static void drive(XMLCursor cursor, XMLHandler handler) throws IOException {
+        XMLCursor.Event event;
+        while ((event = cursor.next()) != XMLCursor.Event.END_DOCUMENT) {
+            if (event == XMLCursor.Event.START_ELEMENT) {
+                handler.startElement(cursor.getTagName(), cursor.getAttributes());
+            } else if (event == XMLCursor.Event.END_ELEMENT) {
+                handler.endElement(cursor.getTagName());
+            } else {
+                handler.text(cursor.getText());
             }
-        } else {
-            iterator.previous();
         }
     }
 }
@@ -0,0 +1,447 @@
+package fr.feavy.xml;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Compact binary form of an element tree, read back with {@link XMLParser#readSnapshot(InputStream)}.
+ * <p>
+ * A snapshot starts with a magic number and its payload length. The payload holds a table of every
+ * distinct string of the tree, followed by the elements in document order. Numbers are unsigned varints and strings are referenced by their index in the table,
+ * plus one for the values which may be null, 0 standing for null. Style elements store their rules
+ * already parsed. Each element is stored as
+ * <pre>
+ * kind tag attributeCount (key value+1)* content+1 childCount
+ * </pre>
+ * where {@code kind} is 0 for an element and 1 for a style element, which then has no content but
+ * {@code ruleCount (selectorCount selector* propertyCount (name value+1)*)*} in its place.
+ * <p>
+ * Snapshots are read into memory in bulk, reading exactly their payload length, so data written after
+ * a snapshot can be read from the same stream.
+ */
+public final class XMLSnapshot {
+    private static final int MAGIC = 0x46585303;
+    private static final int ELEMENT = 0;
+    private static final int STYLE = 1;
+    /**
+     * Bound of the capacities allocated from counts read from a snapshot, larger counts growing as data is read.
+     */
+    private static final int MAX_PREALLOCATED = 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private XMLSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the tree. The stream is flushed but not closed.
+     */
+    public static void write(XMLElement root, OutputStream out) throws IOException {
+        Map<String, Integer> table = new LinkedHashMap<>();
+        forEach(root, element -> {
+            index(table, element.getTagName());
+            for (Map.Entry<String, String> attribute : element.attributeMap().entrySet()) {
+                index(table, attribute.getKey());
+                indexNullable(table, attribute.getValue());
+            }
+            if (element instanceof StyleElement) {
+                for (CSSRule rule : ((StyleElement) element).rules()) {
+                    for (String selector : rule.getSelectors()) {
+                        index(table, selector);
+                    }
+                    for (Map.Entry<String, String> property : rule.properties().entrySet()) {
+                        index(table, property.getKey());
+                        indexNullable(table, property.getValue());
+                    }
+                }
+            } else if (element.getContent() != null) {
+                index(table, element.getContent());
+            }
+        });
+
+        Output output = new Output();
+        output.writeVarInt(table.size());
+        for (String string : table.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.writeVarInt(bytes.length);
+            output.write(bytes);
+        }
+        forEach(root, element -> writeElement(element, table, output));
+        Output header = new Output();
+        header.writeInt(MAGIC);
+        header.writeVarInt(output.size());
+        header.writeTo(out);
+        output.writeTo(out);
+        out.flush();
+    }
+
+    private static void writeElement(XMLElement element, Map<String, Integer> table, Output out) throws IOException {
+        boolean style = element instanceof StyleElement;
+        out.writeVarInt(style ? STYLE : ELEMENT);
+        out.writeVarInt(table.get(element.getTagName()));
+        out.writeVarInt(element.attributeMap().size());
+        for (Map.Entry<String, String> attribute : element.attributeMap().entrySet()) {
+            out.writeVarInt(table.get(attribute.getKey()));
+            writeNullable(table, attribute.getValue(), out);
+        }
+        if (style) {
+            List<CSSRule> rules = ((StyleElement) element).rules();
+            out.writeVarInt(rules.size());
+            for (CSSRule rule : rules) {
+                out.writeVarInt(rule.getSelectors().size());
+                for (String selector : rule.getSelectors()) {
+                    out.writeVarInt(table.get(selector));
+                }
+                out.writeVarInt(rule.properties().size());
+                for (Map.Entry<String, String> property : rule.properties().entrySet()) {
+                    out.writeVarInt(table.get(property.getKey()));
+                    writeNullable(table, property.getValue(), out);
+                }
+            }
+        } else {
+            writeNullable(table, element.getContent(), out);
+        }
+        out.writeVarInt(element.childrenView().size());
+    }
+
+    private static void writeNullable(Map<String, Integer> table, String string, Output out) throws IOException {
+        out.writeVarInt(string == null ? 0 : table.get(string) + 1);
+    }
+
+    static XMLElement read(InputStream in, ElementFactories factories, SymbolTable symbols) throws IOException {
+        Input input = Input.read(in, 4);
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not an XML snapshot");
+        }
+        input = Input.read(in, readLength(in));
+        int size = input.readCount();
+        List<String> strings = new ArrayList<>(Math.min(size, MAX_PREALLOCATED));
+        for (int i = 0; i < size; i++) {
+            strings.add(input.readString());
+        }
+        String[] table = strings.toArray(new String[0]);
+        Reader reader = new Reader(input, table, factories.bind(symbols), symbols);
+
+        XMLElement root = reader.readElement();
+        Deque<XMLElement> elements = new ArrayDeque<>();
+        Deque<int[]> remaining = new ArrayDeque<>();
+        elements.push(root);
+        remaining.push(new int[]{reader.childCount});
+        while (!elements.isEmpty()) {
+            int[] count = remaining.peek();
+            if (count[0] == 0) {
+                elements.pop();
+                remaining.pop();
+                continue;
+            }
+            count[0]--;
+            XMLElement child = reader.readElement();
+            elements.peek().addChild(child);
+            if (reader.childCount > 0) {
+                elements.push(child);
+                remaining.push(new int[]{reader.childCount});
+            }
+        }
+        if (input.remaining() > 0) {
+            throw new IOException("Unexpected data at the end of the XML snapshot");
+        }
+        return root;
+    }
+
+    /**
+     * Reads the payload length byte by byte, as nothing after it may be read.
+     */
+    private static int readLength(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated XML snapshot");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Invalid length " + (value & 0xFFFFFFFFL) + " of XML snapshot");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in XML snapshot");
+    }
+
+    private static void index(Map<String, Integer> table, String string) {
+        if (!table.containsKey(string)) {
+            table.put(string, table.size());
+        }
+    }
+
+    private static void indexNullable(Map<String, Integer> table, String string) {
+        if (string != null) {
+            index(table, string);
+        }
+    }
+
+    private static void forEach(XMLElement root, Visitor action) throws IOException {
+        Deque<Iterator<XMLElement>> stack = new ArrayDeque<>();
+        action.visit(root);
+        stack.push(root.childrenView().iterator());
+        while (!stack.isEmpty()) {
+            Iterator<XMLElement> iterator = stack.peek();
+            if (iterator.hasNext()) {
+                XMLElement child = iterator.next();
+                action.visit(child);
+                stack.push(child.childrenView().iterator());
+            } else {
+                stack.pop();
+            }
+        }
+    }
+
+    private interface Visitor {
+        void visit(XMLElement element) throws IOException;
+    }
+
+    /**
+     * Reads elements, creating them with the registered factories and canonicalizing names like the parser.
+     */
+    private static final class Reader {
+        private final Input in;
+        private final String[] table;
+        private final String[] names;
+        private final Map<String, Function<Map<String, String>, ? extends XMLElement>> factories;
+        private final SymbolTable symbols;
+        private final String classKey;
+        int childCount;
+
+        Reader(Input in, String[] table, Map<String, Function<Map<String, String>, ? extends XMLElement>> factories, SymbolTable symbols) {
+            this.in = in;
+            this.table = table;
+            this.names = new String[table.length];
+            this.factories = factories;
+            this.symbols = symbols;
+            this.classKey = symbols.intern("class");
+        }
+
+        XMLElement readElement() throws IOException {
+            int kind = in.readVarInt();
+            String tag = name(in.readVarInt());
+            int attributeCount = in.readCount();
+            AttributeMap attributes = attributeCount == 0 ? AttributeMap.EMPTY
+                    : new AttributeMap(Math.min(attributeCount, MAX_PREALLOCATED), false);
+            for (int i = 0; i < attributeCount; i++) {
+                String key = name(in.readVarInt());
+                int value = in.readVarInt();
+                attributes.set(key, value == 0 ? null : key == classKey ? name(value - 1) : string(value - 1));
+            }
+            Function<Map<String, String>, ? extends XMLElement> factory = factories.get(tag);
+            XMLElement element = factory == null ? new XMLElement(tag, attributes) : factory.apply(attributes);
+            element.readClasses(symbols);
+            if (kind == STYLE) {
+                List<CSSRule> rules = readRules();
+                if (element instanceof StyleElement) {
+                    ((StyleElement) element).setRules(rules);
+                } else {
+                    StringBuilder content = new StringBuilder();
+                    for (CSSRule rule : rules) {
+                        XMLWriter.pretty().writeRule(rule, 0, content);
+                    }
+                    element.setContent(content.toString());
+                }
+            } else if (kind == ELEMENT) {
+                String content = nullable(in.readVarInt());
+                if (content != null) {
+                    element.setContent(content);
+                }
+            } else {
+                throw new IOException("Unknown element kind " + kind);
+            }
+            childCount = in.readCount();
+            return element;
+        }
+
+        private List<CSSRule> readRules() throws IOException {
+            int ruleCount = in.readCount();
+            List<CSSRule> rules = new ArrayList<>(Math.min(ruleCount, MAX_PREALLOCATED));
+            for (int i = 0; i < ruleCount; i++) {
+                int selectorCount = in.readCount();
+                Set<String> selectors = new LinkedHashSet<>();
+                for (int j = 0; j < selectorCount; j++) {
+                    selectors.add(string(in.readVarInt()));
+                }
+                int propertyCount = in.readCount();
+                Map<String, String> properties = new LinkedHashMap<>();
+                for (int j = 0; j < propertyCount; j++) {
+                    String name = string(in.readVarInt());
+                    properties.put(name, nullable(in.readVarInt()));
+                }
+                rules.add(new CSSRule(selectors, properties));
+            }
+            return rules;
+        }
+
+        private String string(int index) throws IOException {
+            if (index < 0 || index >= table.length) {
+                throw new IOException("Invalid string reference " + index);
+            }
+            return table[index];
+        }
+
+        /**
+         * String referenced by its index plus one, or null for 0.
+         */
+        private String nullable(int reference) throws IOException {
+            return reference == 0 ? null : string(reference - 1);
+        }
+
+        private String name(int index) throws IOException {
+            String name = string(index);
+            String canonical = names[index];
+            if (canonical == null) {
+                canonical = symbols.lookup(name.toCharArray(), 0, name.length());
+                names[index] = canonical;
+            }
+            return canonical;
+        }
+    }
+
+    /**
+     * Growable byte buffer, so that the payload length is known before writing it.
+     */
+    private static final class Output {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(size + 4);
+            bytes[size++] = (byte) (value >>> 24);
+            bytes[size++] = (byte) (value >>> 16);
+            bytes[size++] = (byte) (value >>> 8);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(size + 5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void write(byte[] data) {
+            ensureCapacity(size + data.length);
+            System.arraycopy(data, 0, bytes, size, data.length);
+            size += data.length;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+    }
+
+    /**
+     * Bytes of a snapshot read in bulk, decoded from memory.
+     */
+    private static final class Input {
+        private final byte[] bytes;
+        private final int limit;
+        private int position;
+
+        private Input(byte[] bytes, int limit) {
+            this.bytes = bytes;
+            this.limit = limit;
+        }
+
+        /**
+         * Reads exactly the given number of bytes.
+         */
+        static Input read(InputStream in, int length) throws IOException {
+            byte[] bytes = new byte[Math.min(length, BUFFER_SIZE)];
+            int read = 0;
+            while (read < length) {
+                if (read == bytes.length) {
+                    // grows with the data read, so a corrupt length fails with an EOFException instead of allocating it
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(length, bytes.length * 2L));
+                }
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new EOFException("Truncated XML snapshot");
+                }
+                read += count;
+            }
+            return new Input(bytes, length);
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                throw new EOFException("Truncated XML snapshot");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            return read() << 24 | read() << 16 | read() << 8 | read();
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = read();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in XML snapshot");
+        }
+
+        /**
+         * Reads a count or a length, which no valid snapshot has negative.
+         */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count < 0) {
+                throw new IOException("Invalid count " + (count & 0xFFFFFFFFL) + " in XML snapshot");
+            }
+            return count;
+        }
+
+        String readString() throws IOException {
+            int length = readCount();
+            if (length > remaining()) {
+                throw new EOFException("Truncated XML snapshot");
+            }
+            String rep = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return rep;
+        }
+    }
+}
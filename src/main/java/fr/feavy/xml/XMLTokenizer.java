@@ -0,0 +1,402 @@
+package fr.feavy.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+/**
+ * Single pass scanner producing start tags, end tags and text runs.
+ * <p>
+ * Text runs are normalized the way the parser always did: every line is trimmed,
+ * blank lines are dropped and the remaining lines are joined with {@code '\n'}.
+ * Attributes follow the {@code key="value"} form, anything else inside a tag is ignored.
+ * Comments, processing instructions and declarations are skipped and tag names are lower-cased.
+ * Tag names, attribute keys and class values are canonicalized through a {@link SymbolTable}.
+ * <p>
+ * The source is consumed through a fixed-size buffer, so memory use only depends on the
+ * longest token and not on the size of the document.
+ * <p>
+ * A structural tokenizer only reports tags: attribute values are checked but not kept and text runs are skipped.
+ */
+final class XMLTokenizer {
+    static final int START_TAG = 0;
+    static final int END_TAG = 1;
+    static final int TEXT = 2;
+    static final int END_DOCUMENT = 3;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int EOF = -1;
+
+    private final CharSequence source;
+    private final Reader reader;
+    private final SymbolTable symbols;
+    private final String classKey;
+    private final boolean structural;
+    private int sourceOffset;
+    private int sourceEnd;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+    private long bufferStart;
+    private long tokenStart;
+
+    private char[] chars = new char[64];
+    private int length;
+
+    private String name;
+    private boolean selfClosing;
+    private final AttributeMap attributes = new AttributeMap(8, true);
+
+    XMLTokenizer(CharSequence source, SymbolTable symbols) {
+        this(source, 0, source.length(), symbols, false);
+    }
+
+    /**
+     * Creates a tokenizer over a range of the source, reporting offsets relative to the whole source.
+     */
+    XMLTokenizer(CharSequence source, int start, int end, SymbolTable symbols, boolean structural) {
+        this.source = source;
+        this.reader = null;
+        this.symbols = symbols;
+        this.classKey = symbols.intern("class");
+        this.structural = structural;
+        this.buffer = new char[Math.max(16, Math.min(BUFFER_SIZE, end - start))];
+        reset(start, end);
+    }
+
+    XMLTokenizer(Reader reader, SymbolTable symbols) {
+        this.source = null;
+        this.reader = reader;
+        this.symbols = symbols;
+        this.classKey = symbols.intern("class");
+        this.structural = false;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Restarts a tokenizer created over a character sequence on another range of it.
+     */
+    void reset(int start, int end) {
+        sourceOffset = start;
+        sourceEnd = end;
+        bufferStart = start;
+        position = 0;
+        limit = 0;
+    }
+
+    /**
+     * Advances to the next token and returns its type.
+     */
+    int next() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                return END_DOCUMENT;
+            }
+            if (buffer[position] != '<') {
+                if (readText()) {
+                    return TEXT;
+                }
+                continue;
+            }
+            tokenStart = bufferStart + position;
+            position++;
+            int c = read();
+            if (c == '/') {
+                readEndTag();
+                return END_TAG;
+            } else if (c == '!') {
+                skipDeclaration();
+            } else if (c == '?') {
+                skipProcessingInstruction();
+            } else {
+                readStartTag(c);
+                return START_TAG;
+            }
+        }
+    }
+
+    /**
+     * Lower-cased tag name of the current start or end tag.
+     */
+    String getName() {
+        return name;
+    }
+
+    boolean isSelfClosing() {
+        return selfClosing;
+    }
+
+    /**
+     * Absolute offset of the {@code '<'} starting the current tag.
+     */
+    long getTokenStart() {
+        return tokenStart;
+    }
+
+    /**
+     * Absolute offset of the next character to be read.
+     */
+    long getOffset() {
+        return bufferStart + position;
+    }
+
+    String getText() {
+        return new String(chars, 0, length);
+    }
+
+    int getAttributeCount() {
+        return attributes.size();
+    }
+
+    String getAttributeName(int index) {
+        return attributes.keyAt(index);
+    }
+
+    String getAttributeValue(int index) {
+        return attributes.valueAt(index);
+    }
+
+    /**
+     * Read-only map over the attributes of the current start tag, only valid until the next token.
+     */
+    Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    private boolean fill() throws IOException {
+        bufferStart += limit;
+        position = 0;
+        limit = 0;
+        if (reader != null) {
+            int count = reader.read(buffer, 0, buffer.length);
+            if (count <= 0) {
+                return false;
+            }
+            limit = count;
+            return true;
+        }
+        int remaining = sourceEnd - sourceOffset;
+        if (remaining <= 0) {
+            return false;
+        }
+        int count = Math.min(buffer.length, remaining);
+        if (source instanceof String) {
+            ((String) source).getChars(sourceOffset, sourceOffset + count, buffer, 0);
+        } else {
+            for (int i = 0; i < count; i++) {
+                buffer[i] = source.charAt(sourceOffset + i);
+            }
+        }
+        sourceOffset += count;
+        limit = count;
+        return true;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position];
+    }
+
+    private void append(int c) {
+        if (length == chars.length) {
+            char[] grown = new char[length * 2];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+        }
+        chars[length++] = (char) c;
+    }
+
+    private void appendLowerCase(int c) {
+        if (c >= 'A' && c <= 'Z') {
+            append(c + ('a' - 'A'));
+        } else if (c < 0x80) {
+            append(c);
+        } else {
+            append(Character.toLowerCase((char) c));
+        }
+    }
+
+    private XMLParseException error(String message) {
+        return new XMLParseException(message, getOffset());
+    }
+
+    private static boolean isKeyChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == ':' || c == '_' || c == '-';
+    }
+
+    /**
+     * Reads characters up to the next {@code '<'}, trimming each line on the fly.
+     * Returns false when the run only contained whitespace.
+     */
+    private boolean readText() throws IOException {
+        if (structural) {
+            while (position < limit || fill()) {
+                while (position < limit && buffer[position] != '<') {
+                    position++;
+                }
+                if (position < limit) {
+                    break;
+                }
+            }
+            return false;
+        }
+        length = 0;
+        boolean lineHasContent = false;
+        int lineEnd = 0;
+        while (position < limit || fill()) {
+            char c = buffer[position];
+            if (c == '<') {
+                break;
+            }
+            position++;
+            if (c == '\n') {
+                if (lineHasContent) {
+                    length = lineEnd;
+                    lineHasContent = false;
+                }
+            } else if (c <= ' ') {
+                if (lineHasContent) {
+                    append(c);
+                }
+            } else {
+                if (!lineHasContent) {
+                    if (length > 0) {
+                        append('\n');
+                    }
+                    lineHasContent = true;
+                }
+                append(c);
+                lineEnd = length;
+            }
+        }
+        if (lineHasContent) {
+            length = lineEnd;
+        }
+        return length > 0;
+    }
+
+    private void readStartTag(int c) throws IOException {
+        length = 0;
+        while (c > ' ' && c != '/' && c != '>') {
+            appendLowerCase(c);
+            c = read();
+        }
+        if (length == 0) {
+            throw error(c == EOF ? "Unterminated tag" : "Missing tag name");
+        }
+        name = symbols.lookup(chars, 0, length);
+        selfClosing = false;
+        attributes.reset();
+        while (c != '>') {
+            if (c == EOF) {
+                throw error("Unterminated tag <" + name);
+            }
+            if (c == '/') {
+                c = read();
+                if (c == '>') {
+                    selfClosing = true;
+                }
+            } else if (isKeyChar(c)) {
+                length = 0;
+                do {
+                    append(c);
+                    c = read();
+                } while (isKeyChar(c));
+                if (c != '=') {
+                    continue;
+                }
+                c = read();
+                if (c != '"') {
+                    continue;
+                }
+                if (structural) {
+                    skipAttributeValue();
+                    c = read();
+                    continue;
+                }
+                String key = symbols.lookup(chars, 0, length);
+                length = 0;
+                while ((c = read()) != '"') {
+                    if (c == EOF) {
+                        throw error("Unterminated attribute value in tag <" + name);
+                    }
+                    append(c);
+                }
+                attributes.set(key, key == classKey ? symbols.lookup(chars, 0, length) : new String(chars, 0, length));
+                c = read();
+            } else {
+                c = read();
+            }
+        }
+    }
+
+    private void skipAttributeValue() throws IOException {
+        int c;
+        while ((c = read()) != '"') {
+            if (c == EOF) {
+                throw error("Unterminated attribute value in tag <" + name);
+            }
+        }
+    }
+
+    private void readEndTag() throws IOException {
+        length = 0;
+        int c = read();
+        while (c > ' ' && c != '>') {
+            appendLowerCase(c);
+            c = read();
+        }
+        while (c != '>') {
+            if (c == EOF) {
+                throw error("Unterminated end tag");
+            }
+            c = read();
+        }
+        if (length == 0) {
+            throw error("Missing end tag name");
+        }
+        name = symbols.lookup(chars, 0, length);
+    }
+
+    private void skipDeclaration() throws IOException {
+        int c = read();
+        if (c == '-' && peek() == '-') {
+            position++;
+            int dashes = 0;
+            while ((c = read()) != '>' || dashes < 2) {
+                if (c == EOF) {
+                    throw error("Unterminated comment");
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+            return;
+        }
+        while (c != '>') {
+            if (c == EOF) {
+                throw error("Unterminated declaration");
+            }
+            c = read();
+        }
+    }
+
+    private void skipProcessingInstruction() throws IOException {
+        int c;
+        boolean question = false;
+        while ((c = read()) != '>' || !question) {
+            if (c == EOF) {
+                throw error("Unterminated processing instruction");
+            }
+            question = c == '?';
+        }
+    }
+}
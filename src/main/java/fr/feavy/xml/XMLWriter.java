@@ -0,0 +1,267 @@
+package fr.feavy.xml;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Serializes element trees straight into an {@link Appendable}, without building intermediate strings.
+ * <p>
+ * The pretty form is the one of {@link XMLElement#toString()}: two spaces of indentation per level
+ * and text content on its own line. The compact form has no indentation and no line breaks.
+ * Escaping of {@code &}, {@code <}, {@code >} and, in attribute values, {@code "} is off by default,
+ * as the parser keeps entities as they are. The tree is walked iteratively, so depth is not limited
+ * by the stack. Each element is written through {@link XMLElement#writeStartTag(XMLWriter, int, Appendable)},
+ * which subclasses override to write themselves in their own format.
+ */
+public final class XMLWriter {
+    private static final XMLWriter PRETTY = new XMLWriter(true, false);
+    private static final XMLWriter COMPACT = new XMLWriter(false, false);
+    private static final int INDENT = 2;
+    private static final int BUFFER_SIZE = 8192;
+    private static final String SPACES = "                                                                ";
+
+    private final boolean pretty;
+    private final boolean escaping;
+
+    private XMLWriter(boolean pretty, boolean escaping) {
+        this.pretty = pretty;
+        this.escaping = escaping;
+    }
+
+    public static XMLWriter pretty() {
+        return PRETTY;
+    }
+
+    public static XMLWriter compact() {
+        return COMPACT;
+    }
+
+    /**
+     * Returns a writer with the same layout, escaping markup characters in text and attribute values or not.
+     */
+    public XMLWriter withEscaping(boolean escaping) {
+        return new XMLWriter(pretty, escaping);
+    }
+
+    public boolean isPretty() {
+        return pretty;
+    }
+
+    public boolean isEscaping() {
+        return escaping;
+    }
+
+    public void write(XMLElement element, Appendable out) throws IOException {
+        write(element, 0, out);
+    }
+
+    /**
+     * Writes through a buffer, the writer is flushed but not closed.
+     */
+    public void write(XMLElement element, Writer out) throws IOException {
+        Writer writer = out instanceof BufferedWriter ? out : new BufferedWriter(out, BUFFER_SIZE);
+        write(element, 0, (Appendable) writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the element in UTF-8, the stream is flushed but not closed.
+     */
+    public void write(XMLElement element, OutputStream out) throws IOException {
+        write(element, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    public String toString(XMLElement element) {
+        return toString(element, 0);
+    }
+
+    String toString(XMLElement element, int indent) {
+        StringBuilder rep = new StringBuilder();
+        try {
+            write(element, indent, rep);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rep.toString();
+    }
+
+    String toString(CSSRule rule, int indent) {
+        StringBuilder rep = new StringBuilder();
+        try {
+            writeRule(rule, indent, rep);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rep.toString();
+    }
+
+    void write(XMLElement element, int indent, Appendable out) throws IOException {
+        if (!element.writeStartTag(this, indent, out)) {
+            return;
+        }
+        Deque<XMLElement> elements = new ArrayDeque<>();
+        Deque<Iterator<XMLElement>> children = new ArrayDeque<>();
+        elements.push(element);
+        children.push(element.childrenView().iterator());
+        while (!children.isEmpty()) {
+            Iterator<XMLElement> iterator = children.peek();
+            if (iterator.hasNext()) {
+                XMLElement child = iterator.next();
+                if (child.writeStartTag(this, indent + INDENT * children.size(), out)) {
+                    elements.push(child);
+                    children.push(child.childrenView().iterator());
+                }
+            } else {
+                children.pop();
+                indent(indent + INDENT * children.size(), out);
+                close(elements.pop(), out);
+            }
+        }
+    }
+
+    /**
+     * Writes the start tag of an element, or the whole element when it has no children to write.
+     * Returns whether its children and end tag are still to be written.
+     */
+    boolean writeStartTag(XMLElement element, int indent, Appendable out) throws IOException {
+        String content = element.getContent();
+        indent(indent, out);
+        out.append('<').append(element.getTagName());
+        writeAttributes(element, out);
+        if (content == null && !element.hasChildren()) {
+            out.append(pretty ? " />" : "/>");
+            newLine(out);
+            return false;
+        }
+        out.append('>');
+        if (content != null && !isBlank(content)) {
+            newLine(out);
+            writeText(content, false, out);
+            close(element, out);
+            return false;
+        }
+        newLine(out);
+        return true;
+    }
+
+    private void close(XMLElement element, Appendable out) throws IOException {
+        out.append("</").append(element.getTagName()).append('>');
+        newLine(out);
+    }
+
+    private void writeAttributes(XMLElement element, Appendable out) throws IOException {
+        for (Map.Entry<String, String> attribute : element.attributeMap().entrySet()) {
+            out.append(' ').append(attribute.getKey()).append("=\"");
+            writeText(attribute.getValue(), true, out);
+            out.append('"');
+        }
+    }
+
+    void writeStyle(StyleElement style, int indent, Appendable out) throws IOException {
+        indent(indent, out);
+        out.append("<style");
+        writeAttributes(style, out);
+        out.append('>');
+        newLine(out);
+        for (CSSRule rule : style.rules()) {
+            writeRule(rule, indent + INDENT, out);
+        }
+        indent(indent, out);
+        out.append("</style>");
+        newLine(out);
+    }
+
+    void writeRule(CSSRule rule, int indent, Appendable out) throws IOException {
+        indent(indent, out);
+        boolean first = true;
+        for (String selector : rule.getSelectors()) {
+            if (!first) {
+                out.append(pretty ? ", " : ",");
+            }
+            out.append(selector);
+            first = false;
+        }
+        out.append(pretty ? " {" : "{");
+        newLine(out);
+        for (Map.Entry<String, String> property : rule.properties().entrySet()) {
+            indent(indent + INDENT, out);
+            out.append(property.getKey()).append(pretty ? ": " : ":").append(property.getValue()).append(';');
+            newLine(out);
+        }
+        indent(indent, out);
+        out.append('}');
+        newLine(out);
+    }
+
+    private void writeText(String text, boolean attribute, Appendable out) throws IOException {
+        if (text == null) {
+            // written as by Appendable.append, escaped or not
+            out.append("null");
+            return;
+        }
+        if (!escaping) {
+            out.append(text);
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String entity;
+            switch (text.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = attribute ? "&quot;" : null;
+                    break;
+                default:
+                    entity = null;
+            }
+            if (entity != null) {
+                out.append(text, start, i).append(entity);
+                start = i + 1;
+            }
+        }
+        out.append(text, start, text.length());
+    }
+
+    private void indent(int amount, Appendable out) throws IOException {
+        if (!pretty) {
+            return;
+        }
+        while (amount > SPACES.length()) {
+            out.append(SPACES);
+            amount -= SPACES.length();
+        }
+        out.append(SPACES, 0, amount);
+    }
+
+    private void newLine(Appendable out) throws IOException {
+        if (pretty) {
+            out.append('\n');
+        }
+    }
+
+    private static boolean isBlank(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -2,12 +2,34 @@ package fr.feavy.xml;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class XMLParserTest {
 
@@ -104,4 +126,842 @@ public class XMLParserTest {
         // Then
         assertEquals(DivElement.class, root.getElementById("dv").getClass());
     }
+
+    @Test
+    public void tagsAndAttributesAreTokenized() {
+        // Given
+        String input = "<?xml version=\"1.0\"?>\n" +
+                "<!-- header -->\n" +
+                "<Root lang=\"fr\">\n" +
+                "  <item\n" +
+                "      id=\"a\" title=\"1 > 0\" ignored=x/>\n" +
+                "  <text>  first line  \n\n   second line </text>\n" +
+                "</Root>";
+
+        // When
+        XMLElement root = new XMLParser().parse(input);
+
+        // Then
+        assertEquals("root", root.getTagName());
+        assertEquals("fr", root.getOwnAttribute("lang"));
+        assertEquals(2, root.getChildren().size());
+        XMLElement item = root.getChild(0);
+        assertEquals("item", item.getTagName());
+        assertEquals("1 > 0", item.getOwnAttribute("title"));
+        assertEquals(null, item.getOwnAttribute("ignored"));
+        assertEquals(false, item.hasChildren());
+        assertEquals("first line\nsecond line", root.getChild(1).getContent());
+    }
+
+    @Test
+    public void deepAndLargeDocumentsDoNotOverflow() {
+        // Given
+        int depth = 100_000;
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            deep.append("<e>");
+        }
+        deep.append("leaf");
+        for (int i = 0; i < depth; i++) {
+            deep.append("</e>");
+        }
+        StringBuilder wide = new StringBuilder("<list>");
+        for (int i = 0; i < 200_000; i++) {
+            wide.append("<item>").append(i).append("</item>\n");
+        }
+        wide.append("</list>");
+
+        // When
+        XMLElement deepRoot = new XMLParser().parse(deep.toString());
+        XMLElement wideRoot = new XMLParser().parse(wide.toString());
+
+        // Then
+        XMLElement element = deepRoot;
+        int levels = 1;
+        while (element.hasChildren()) {
+            element = element.getChild(0);
+            levels++;
+        }
+        assertEquals(depth, levels);
+        assertEquals("leaf", element.getContent());
+        assertEquals(200_000, wideRoot.getChildren().size());
+        assertEquals("199999", wideRoot.getChild(199_999).getContent());
+    }
+
+    @Test
+    public void cursorReadsEvents() throws IOException {
+        // Given
+        String input = "<Root id=\"r\">\n<item key=\"a\"/>\n<text>Hello !</text>\n</Root>trailing";
+
+        // When
+        try (XMLCursor cursor = new XMLParser().openReader(new StringReader(input))) {
+            // Then
+            assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+            assertEquals("root", cursor.getTagName());
+            assertEquals("r", cursor.getAttribute("id"));
+            assertEquals(1, cursor.getDepth());
+            assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+            assertEquals("a", cursor.getAttributeValue(0));
+            assertEquals(2, cursor.getDepth());
+            assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+            assertEquals("item", cursor.getTagName());
+            assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+            assertEquals(XMLCursor.Event.TEXT, cursor.next());
+            assertEquals("Hello !", cursor.getText());
+            assertEquals(XMLCursor.Event.END_ELEMENT, cursor.nextTag());
+            assertEquals(XMLCursor.Event.END_ELEMENT, cursor.nextTag());
+            assertEquals("root", cursor.getTagName());
+            assertEquals(XMLCursor.Event.END_DOCUMENT, cursor.next());
+            assertFalse(cursor.hasNext());
+        }
+    }
+
+    @Test
+    public void cursorStreamsWithoutBufferingTheDocument() throws IOException {
+        // Given
+        int count = 1_000_000;
+        Reader generated = new Reader() {
+            private int item = -1;
+            private String pending = "<feed>";
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                if (pending.isEmpty()) {
+                    if (item == count) {
+                        return -1;
+                    }
+                    item++;
+                    pending = item == count ? "</feed>" : "<record n=\"" + item + "\">value</record>";
+                }
+                int read = Math.min(length, pending.length());
+                pending.getChars(0, read, buffer, offset);
+                pending = pending.substring(read);
+                return read;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        // When
+        int records = 0;
+        String last = null;
+        try (XMLCursor cursor = new XMLParser().openReader(generated)) {
+            while (cursor.next() != XMLCursor.Event.END_DOCUMENT) {
+                if (cursor.getEvent() == XMLCursor.Event.START_ELEMENT && cursor.getDepth() == 2) {
+                    records++;
+                    last = cursor.getAttribute("n");
+                }
+            }
+        }
+
+        // Then
+        assertEquals(count, records);
+        assertEquals(String.valueOf(count - 1), last);
+    }
+
+    @Test
+    public void handlerReceivesEvents() {
+        // Given
+        String input = "<html><div id=\"a\"><br/>text</div></html>";
+        StringBuilder events = new StringBuilder();
+
+        // When
+        new XMLParser().parse(input, new XMLHandler() {
+            @Override
+            public void startElement(String tagName, Map<String, String> attributes) {
+                events.append("<").append(tagName).append(attributes.getOrDefault("id", "")).append(">");
+            }
+
+            @Override
+            public void endElement(String tagName) {
+                events.append("</").append(tagName).append(">");
+            }
+
+            @Override
+            public void text(String text) {
+                events.append(text);
+            }
+        });
+
+        // Then
+        assertEquals("<html><diva><br></br>text</div></html>", events.toString());
+    }
+
+    @Test
+    public void selectedSubtreesAreMaterializedOneAtATime() throws IOException {
+        // Given
+        String input = "<feed>" +
+                "<div id=\"1\"><text>one</text></div>" +
+                "<other><div id=\"2\"/></other>" +
+                "</feed>";
+        List<XMLElement> selected = new ArrayList<>();
+
+        // When
+        new XMLParser().with("div", DivElement::new).forEach(new StringReader(input), "DIV", selected::add);
+
+        // Then
+        assertEquals(2, selected.size());
+        assertEquals(DivElement.class, selected.get(0).getClass());
+        assertEquals("1", selected.get(0).getId());
+        assertEquals("one", selected.get(0).getChild(0).getContent());
+        assertFalse(selected.get(0).hasParent());
+        assertEquals("2", selected.get(1).getId());
+    }
+
+    @Test
+    public void inputStreamCharsetIsDetected() throws IOException {
+        // Given
+        String document = "<text>Gar\u00e7on \u2615</text>";
+        byte[] utf16 = ("\uFEFF" + document).getBytes(StandardCharsets.UTF_16LE);
+        byte[] latin1 = ("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><text>Gar\u00e7on</text>").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] utf8 = document.getBytes(StandardCharsets.UTF_8);
+
+        // When
+        XMLElement fromUtf16 = new XMLParser().parse(new ByteArrayInputStream(utf16));
+        XMLElement fromLatin1 = new XMLParser().parse(new ByteArrayInputStream(latin1));
+        XMLElement fromUtf8 = new XMLParser().parse(new ByteArrayInputStream(utf8));
+        XMLElement explicit = new XMLParser().parse(new ByteArrayInputStream(latin1), StandardCharsets.ISO_8859_1);
+
+        // Then
+        assertEquals("Gar\u00e7on \u2615", fromUtf16.getContent());
+        assertEquals("Gar\u00e7on", fromLatin1.getContent());
+        assertEquals("Gar\u00e7on \u2615", fromUtf8.getContent());
+        assertEquals("Gar\u00e7on", explicit.getContent());
+    }
+
+    @Test
+    public void inputStreamErrorsAreReported() {
+        // Given
+        InputStream failing = new InputStream() {
+            private int read;
+
+            @Override
+            public int read() throws IOException {
+                if (read++ < 10) {
+                    return '<';
+                }
+                throw new IOException("disk failure");
+            }
+        };
+
+        // When / Then
+        IOException exception = assertThrows(IOException.class, () -> new XMLParser().parse(failing));
+        assertEquals("disk failure", exception.getMessage());
+    }
+
+    @Test
+    public void pathIsParsedThroughMappedWindows() throws IOException {
+        // Given
+        Path file = Files.createTempFile("mapped", ".xml");
+        try {
+            String document = "\uFEFF<list>\n" +
+                    "<item name=\"\u00e9t\u00e9\">\u4e2d\u6587 \uD83D\uDE00</item>\n" +
+                    "<item>Hello !</item>\n" +
+                    "</list>";
+            Files.write(file, document.getBytes(StandardCharsets.UTF_8));
+
+            // When
+            XMLElement root = new XMLParser().parse(file);
+            XMLElement windowed;
+            try (FileChannel channel = FileChannel.open(file)) {
+                windowed = new XMLParser().parse(new MappedFileReader(channel, 3, 5));
+            }
+
+            // Then
+            for (XMLElement element : Arrays.asList(root, windowed)) {
+                assertEquals("list", element.getTagName());
+                assertEquals(2, element.getChildren().size());
+                assertEquals("\u00e9t\u00e9", element.getChild(0).getOwnAttribute("name"));
+                assertEquals("\u4e2d\u6587 \uD83D\uDE00", element.getChild(0).getContent());
+                assertEquals("Hello !", element.getChild(1).getContent());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void sharedParserParsesConcurrently() throws Exception {
+        // Given
+        XMLParser parser = new XMLParser().with("div", DivElement::new);
+        List<InputStream> inputs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String document = "<html><div id=\"d" + i + "\">" + i + "</div></html>";
+            inputs.add(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        // When
+        List<CompletableFuture<XMLElement>> futures;
+        try {
+            futures = parser.parseAllStreams(inputs, executor);
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        XMLElement first = parser.parse("<a><b/></a>");
+        XMLElement second = parser.parse("<c></c>");
+
+        // Then
+        for (int i = 0; i < futures.size(); i++) {
+            XMLElement div = futures.get(i).get().getElementById("d" + i);
+            assertEquals(DivElement.class, div.getClass());
+            assertEquals(String.valueOf(i), div.getContent());
+        }
+        assertEquals(1, first.getChildren().size());
+        assertFalse(second.hasParent());
+        assertFalse(second.hasChildren());
+    }
+
+    @Test
+    public void namesAreCanonicalized() {
+        // Given
+        SymbolTable symbols = new SymbolTable(64);
+        XMLParser first = new XMLParser(ElementFactories.defaults().with("div", DivElement::new), symbols);
+        XMLParser second = new XMLParser(ElementFactories.defaults(), symbols);
+        String input = "<list><item class=\"row\" id=\"1\"/><ITEM class=\"row\" id=\"2\"/><div/></list>";
+
+        // When
+        XMLElement root = first.parse(input);
+        XMLElement other = second.parse(input);
+        StringBuilder many = new StringBuilder("<list>");
+        for (int i = 0; i < 500; i++) {
+            many.append("<tag").append(i).append("/>");
+        }
+        first.parse(many.append("</list>").toString());
+        int size = symbols.size();
+        StringBuilder longTag = new StringBuilder("long");
+        while (longTag.length() <= 70) {
+            longTag.append("-tag");
+        }
+        XMLElement longRoot = new XMLParser(ElementFactories.defaults().with(longTag.toString(), DivElement::new), symbols)
+                .parse("<" + longTag + "/>");
+
+        // Then
+        XMLElement a = root.getChild(0);
+        XMLElement b = other.getChild(1);
+        assertSame(a.getTagName(), b.getTagName());
+        assertSame(a.getOwnAttribute("class"), b.getOwnAttribute("class"));
+        assertEquals(DivElement.class, root.getChild(2).getClass());
+        assertEquals(XMLElement.class, other.getChild(2).getClass());
+        assertEquals(DivElement.class, longRoot.getClass());
+        assertTrue(size <= 64);
+        SymbolTable otherSymbols = new SymbolTable();
+        ElementFactories factories = first.getElementFactories();
+        Map<String, ?> bound = factories.bind(symbols);
+        factories.bind(otherSymbols);
+        assertSame(bound, factories.bind(symbols));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void attributesKeepSourceOrder() {
+        // Given
+        StringBuilder input = new StringBuilder("<root><a/><b");
+        for (int i = 12; i > 0; i--) {
+            input.append(" k").append(i).append("=\"").append(i).append("\"");
+        }
+        input.append("/></root>");
+
+        // When
+        XMLElement root = new XMLParser().parse(input.toString());
+        XMLElement a = root.getChild(0);
+        XMLElement b = root.getChild(1);
+        a.setAttribute("z", "1");
+        a.setAttribute("y", "2");
+        b.removeAttribute("k7");
+        b.setAttribute("k3", "three");
+
+        // Then
+        assertFalse(root.hasAttributes());
+        assertEquals(" z=\"1\" y=\"2\"", a.getAttributesAsString());
+        assertEquals("12", b.getOwnAttribute("k12"));
+        assertEquals(null, b.getOwnAttribute("k7"));
+        assertEquals("three", b.getOwnAttribute("k3"));
+        assertTrue(b.getAttributesAsString().startsWith(" k12=\"12\" k11=\"11\""));
+        assertEquals(null, root.getOwnAttribute("z"));
+    }
+
+    @Test
+    public void indexFollowsMutations() {
+        // Given
+        String input = "<html>" +
+                "<div id=\"main\" class=\"box\">" +
+                    "<p class=\"box red\">a</p>" +
+                    "<p id=\"second\">b</p>" +
+                "</div>" +
+                "<section><p class=\"red\">c</p></section>" +
+                "</html>";
+
+        // When
+        XMLElement root = new XMLParser().indexed(true).parse(input);
+        XMLElement main = root.getElementById("main");
+        XMLElement inserted = new XMLElement("p");
+        inserted.setClass("red");
+        main.addChild(0, inserted);
+        root.getElementById("second").setAttribute("id", "renamed");
+        root.getElementsByTagName("section").get(0).remove();
+        List<XMLElement> appended = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            XMLElement child = new XMLElement("span");
+            (i % 2 == 0 ? main : root).addChild(child);
+            appended.add(child);
+            assertSame(child, root.getElementsByTagName("span").get(i % 2 == 0 ? i / 2 : i));
+        }
+        for (int i = 0; i < 30; i++) {
+            appended.get(i).remove();
+            main.addChild(0, appended.get(i));
+        }
+
+        // Then
+        assertTrue(root.isIndexed());
+        assertEquals("div", main.getTagName());
+        assertEquals(null, root.getElementById("second"));
+        assertEquals("b", root.getElementById("renamed").getContent());
+        List<XMLElement> red = root.getElementsByClassName("red");
+        assertEquals(2, red.size());
+        assertSame(inserted, red.get(0));
+        assertEquals("a", red.get(1).getContent());
+        assertEquals(3, root.getElementsByTagName("p").size());
+        assertEquals(1, main.getElementsByClassName("box").size());
+        assertEquals(2, main.getElementsByClassName("red").size());
+        assertTrue(root.getElementsByTagName("section").isEmpty());
+        assertFalse(inserted.getElementsByClassName("red").contains(inserted));
+        List<XMLElement> spans = root.getElementsByTagName("span");
+        for (int i = 0; i < 30; i++) {
+            assertSame(appended.get(29 - i), spans.get(i));
+        }
+    }
+
+    @Test
+    public void nestedClassLookupWithoutIndex() {
+        // Given
+        String input = "<div><p class=\"a\"><span class=\"b a\"/></p></div>";
+
+        // When
+        XMLElement root = new XMLParser().parse(input);
+
+        // Then
+        assertEquals(2, root.getElementsByClassName("a").size());
+        assertEquals(1, root.getElementsByClassName("b").size());
+    }
+
+    @Test
+    public void selectorsMatchRightToLeft() {
+        // Given
+        String input = "<html><body id=\"main\"><div class=\"box wide\"><p lang=\"en-US\">a</p><span><p>b</p></span></div>"
+                + "<section><p class=\"x\">c</p></section></body></html>";
+        XMLElement root = new XMLParser().parse(input);
+
+        // When
+        List<XMLElement> nested = root.querySelectorAll("#main .box p");
+        List<XMLElement> children = root.querySelectorAll("div > p, section > p.x");
+        XMLElement first = root.querySelector("body [lang|=en]");
+
+        // Then
+        assertEquals(2, nested.size());
+        assertEquals("a", nested.get(0).getContent());
+        assertEquals("b", nested.get(1).getContent());
+        assertEquals(2, children.size());
+        assertEquals("c", children.get(1).getContent());
+        assertSame(nested.get(0), first);
+        assertTrue(root.querySelectorAll("span > div p").isEmpty());
+        assertEquals(1, nested.get(1).parent().querySelectorAll("html .wide > span > p").size());
+        assertThrows(IllegalArgumentException.class, () -> root.querySelector("p + p"));
+
+        CSSRule rule = new CSSRule();
+        rule.addSelector("div.box");
+        assertTrue(rule.matches(root.querySelector("div")));
+        rule.getSelectors().clear();
+        rule.addSelector("div:hover");
+        assertFalse(rule.matches(root.querySelector("div")));
+        // ".Aa" and ".BB" have the same hash code
+        XMLElement element = new XMLElement("p");
+        element.setClass("BB");
+        rule.getSelectors().clear();
+        rule.addSelector(".Aa");
+        assertFalse(rule.matches(element));
+        rule.removeSelector(".Aa");
+        rule.addSelector(".BB");
+        assertTrue(rule.matches(element));
+    }
+
+    @Test
+    public void computedStylesFollowTheCascade() {
+        // Given
+        String input = "<doc><style>p { color: red; margin: 1px } .note { color: blue } #last { color: green }"
+                + " div { font-size: 12px; margin: 2px }</style>"
+                + "<div><p>a</p><p>b</p><p class=\"note\">c</p><p id=\"last\" class=\"note\">d</p><span>e</span></div></doc>";
+        XMLElement root = new XMLParser().parse(input);
+        StyleResolver resolver = new StyleResolver(root);
+        List<XMLElement> paragraphs = root.getElementsByTagName("p");
+
+        // When
+        ComputedStyle first = resolver.getComputedStyle(paragraphs.get(0));
+        ComputedStyle span = resolver.getComputedStyle(root.getElementsByTagName("span").get(0));
+
+        // Then
+        assertEquals("red", first.getPropertyValue("color"));
+        assertEquals("1px", first.getPropertyValue("margin"));
+        assertEquals("12px", first.getPropertyValue("font-size"));
+        assertSame(first, resolver.getComputedStyle(paragraphs.get(1)));
+        assertEquals("blue", resolver.getComputedStyle(paragraphs.get(2)).getPropertyValue("color"));
+        assertEquals("green", resolver.getComputedStyle(paragraphs.get(3)).getPropertyValue("color"));
+        assertFalse(span.hasProperty("margin"));
+
+        paragraphs.get(1).setClass("note");
+        ((StyleElement) root.getChild(0)).getRule(0).setProperty("margin", "3px");
+        assertEquals("blue", resolver.getComputedStyle(paragraphs.get(1)).getPropertyValue("color"));
+        assertEquals("3px", resolver.getComputedStyle(paragraphs.get(0)).getPropertyValue("margin"));
+        Map<String, String> properties = ((StyleElement) root.getChild(0)).getRule(0).getProperties();
+        properties.put("margin", "4px");
+        assertEquals("4px", resolver.getComputedStyle(paragraphs.get(0)).getPropertyValue("margin"));
+        properties.remove("color");
+        assertEquals(null, resolver.getComputedStyle(paragraphs.get(0)).getPropertyValue("color"));
+        properties.entrySet().iterator().next().setValue("5px");
+        assertEquals("5px", resolver.getComputedStyle(paragraphs.get(0)).getPropertyValue("margin"));
+    }
+
+    @Test
+    public void ruleIndexFollowsRuleChanges() {
+        // Given
+        StyleElement style = new StyleElement();
+        style.setContent("p { color: red } .a { color: blue } #x { color: green } * { margin: 0 }");
+        XMLElement element = new XMLElement("div");
+        element.setAttribute("class", "a");
+
+        // When
+        List<CSSRule> before = style.getCandidateRules(element);
+        CSSRule rule = new CSSRule();
+        rule.addSelector("div");
+        style.addRule(rule);
+        style.removeRule(3);
+        style.getRules().get(0).addSelector(".a");
+
+        // Then
+        assertEquals(2, before.size());
+        assertEquals(".a", before.get(0).getSelectors().iterator().next());
+        List<CSSRule> after = style.getCandidateRules(element);
+        assertEquals(3, after.size());
+        assertSame(style.getRule(0), after.get(0));
+        assertSame(rule, after.get(2));
+    }
+
+    @Test
+    public void stylesheetsAreTokenized() {
+        // Given
+        String css = "@charset \"utf-8\"; /* header */ @media print { p { color: black } }\n"
+                + "div > p,  .a[title=\"x, y\"] { font: 12px  Arial; background: url(http://host/a.png);;\n"
+                + "  content: \"a; b\" }\np{color:red}";
+
+        // When
+        List<CSSRule> rules = CSSRule.fromString(css);
+
+        // Then
+        assertEquals(2, rules.size());
+        assertEquals(Arrays.asList("div > p", ".a[title=\"x, y\"]"), new ArrayList<>(rules.get(0).getSelectors()));
+        assertEquals("12px Arial", rules.get(0).getPropertyValue("font"));
+        assertEquals("url(http://host/a.png)", rules.get(0).getPropertyValue("background"));
+        assertEquals("\"a; b\"", rules.get(0).getPropertyValue("content"));
+        assertEquals("red", rules.get(1).getPropertyValue("color"));
+        CSSParseException error = assertThrows(CSSParseException.class, () -> CSSRule.fromString("p { color red }"));
+        assertEquals(10, error.getOffset());
+    }
+
+    @Test
+    public void inheritedAttributesAreCachedAndInvalidated() {
+        // Given
+        XMLElement root = new XMLParser().parse("<a lang=\"fr\" id=\"r\" dir=\"ltr\"><b><c><d/></c></b><e lang=\"en\"/></a>");
+        XMLElement b = root.getChild(0);
+        XMLElement d = b.getChild(0).getChild(0);
+        XMLElement e = root.getChild(1);
+
+        // When
+        String before = d.getAttribute("lang");
+        root.setAttribute("lang", "de");
+        String changed = d.getAttribute("lang");
+        e.addChild(b);
+
+        // Then
+        assertEquals("fr", before);
+        assertEquals("de", changed);
+        assertEquals("en", d.getAttribute("lang"));
+        assertEquals("r", root.getId());
+        assertEquals(null, d.getId());
+        assertEquals("ltr", d.getAttribute("dir"));
+        XMLElement other = new XMLParser().notInherited("dir").parse("<a dir=\"ltr\" id=\"r\"><b/></a>");
+        assertFalse(other.getChild(0).hasAttribute("dir"));
+        assertEquals("r", other.getChild(0).getId());
+        root.setNotInherited(Arrays.asList("id", "class", "dir"));
+        assertFalse(d.hasAttribute("dir"));
+        e.removeChild(b);
+        assertFalse(b.hasParent());
+        assertEquals(null, d.getAttribute("lang"));
+    }
+
+    @Test
+    public void classListFollowsTheClassAttribute() {
+        // Given
+        XMLElement root = new XMLParser().parse("<div class=\" a  b a \"><p class=\"b\"/></div>");
+
+        // When
+        root.addClass("c");
+        root.removeClass("a");
+        root.getChild(0).addClass("b");
+
+        // Then
+        assertEquals(Arrays.asList("b", "c"), new ArrayList<>(root.getClasses()));
+        assertEquals("b c", root.getClassAsString());
+        assertTrue(root.hasClass("c"));
+        assertFalse(root.hasClass("a"));
+        assertEquals("b", root.getChild(0).getClassAsString());
+        assertFalse(root.getChild(0).hasClass("c"));
+        assertEquals(1, root.getElementsByClassName("b").size());
+        root.getClasses().add("d");
+        root.getClasses().remove("b");
+        assertEquals("c d", root.getOwnAttribute("class"));
+        assertFalse(root.getClasses().contains("b"));
+        XMLElement first = new XMLParser().parse("<a><b class=\"x y\"/><c class=\"y\"/></a>");
+        assertSame(first.getChild(0).getClassList().get(1), first.getChild(1).getClassList().get(0));
+    }
+
+    @Test
+    public void writerStreamsCompactAndEscapedOutput() throws IOException {
+        // Given
+        XMLElement root = new XMLParser().parse("<doc><style>p { color: red }</style><a href=\"x\"/><p>1 &lt; 2</p></doc>");
+        root.getChild(1).setAttribute("title", "say \"hi\" & <bye>");
+
+        // When
+        String compact = XMLWriter.compact().toString(root);
+        String escaped = XMLWriter.compact().withEscaping(true).toString(root.getChild(1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        root.writeTo(out);
+
+        // Then
+        assertEquals("<doc><style>p{color:red;}</style><a href=\"x\" title=\"say \"hi\" & <bye>\"/><p>1 &lt; 2</p></doc>", compact);
+        assertEquals("<a href=\"x\" title=\"say &quot;hi&quot; &amp; &lt;bye&gt;\"/>", escaped);
+        assertEquals(root.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void writerCallsTheWriteHookOfNestedElements() {
+        // Given
+        XMLElement root = new XMLParser().parse("<doc><a/></doc>");
+        root.getChild(0).addChild(new XMLElement("note") {
+            @Override
+            protected boolean writeStartTag(XMLWriter writer, int indent, Appendable out) throws IOException {
+                out.append("<!-- note -->");
+                return false;
+            }
+        });
+        root.getChild(0).setAttribute("title", null);
+
+        // When
+        String compact = XMLWriter.compact().toString(root);
+        String escaped = XMLWriter.compact().withEscaping(true).toString(root);
+
+        // Then
+        assertEquals("<doc><a title=\"null\"><!-- note --></a></doc>", compact);
+        assertEquals(compact, escaped);
+    }
+
+    @Test
+    public void snapshotRestoresTheTree() throws IOException {
+        // Given
+        String input = "<html lang=\"fr\"><style>div > p, .a { font: 12px Arial }</style>"
+                + "<div id=\"dv\" class=\"a b\"><p>Gar\u00e7on</p><br/></div></html>";
+        XMLParser parser = new XMLParser().with("div", DivElement::new);
+        XMLElement root = parser.parse(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        XMLSnapshot.write(root, out);
+        XMLElement restored = parser.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+
+        // Then
+        assertEquals(root.toString(), restored.toString());
+        assertEquals(DivElement.class, restored.getElementById("dv").getClass());
+        StyleElement style = (StyleElement) restored.getChild(0);
+        assertEquals("12px Arial", style.getRule(0).getPropertyValue("font"));
+        assertSame(root.getChild(1).getTagName(), restored.getChild(1).getTagName());
+        assertThrows(IOException.class, () -> parser.readSnapshot(new ByteArrayInputStream(Arrays.copyOf(out.toByteArray(), 20))));
+
+        root.getChild(1).setAttribute("title", null);
+        ByteArrayOutputStream followed = new ByteArrayOutputStream();
+        XMLSnapshot.write(root, followed);
+        followed.write(42);
+        InputStream in = new ByteArrayInputStream(followed.toByteArray());
+        XMLElement withNull = parser.readSnapshot(in);
+        assertTrue(withNull.getChild(1).getAttributes().containsKey("title"));
+        assertEquals(null, withNull.getChild(1).getOwnAttribute("title"));
+        assertEquals(42, in.read());
+        byte[] corrupt = Arrays.copyOf(out.toByteArray(), 9);
+        Arrays.fill(corrupt, 4, 8, (byte) 0xFF);
+        corrupt[8] = 0x07;
+        assertThrows(IOException.class, () -> parser.readSnapshot(new ByteArrayInputStream(corrupt)));
+    }
+
+    @Test
+    public void documentCacheHandsOutCopies() {
+        // Given
+        XMLParser parser = new XMLParser().with("div", DivElement::new);
+        DocumentCache cache = new DocumentCache(parser, 1_000);
+        String template = "<html><style>p { color: red }</style><div id=\"dv\"><p>hi</p></div></html>";
+
+        // When
+        XMLElement first = cache.parse(template);
+        first.getElementById("dv").setAttribute("id", "changed");
+        XMLElement second = cache.parse(template);
+        cache.parse("<big>" + String.join("", Collections.nCopies(8, "<a>text</a>")) + "</big>");
+
+        // Then
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(DivElement.class, second.getElementById("dv").getClass());
+        assertEquals("red", ((StyleElement) second.getChild(0)).getRule(0).getPropertyValue("color"));
+        assertEquals(new XMLParser().parse(template).toString(), second.toString());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, cache.size());
+        assertTrue(cache.getWeight() <= 1_000);
+    }
+
+    @Test
+    public void cloneSharedCopiesOnWrite() {
+        // Given
+        XMLElement template = new XMLParser().with("div", DivElement::new)
+                .parse("<html><style>p { color: red }</style><div class=\"a\"><p>one</p></div><p>two</p></html>");
+
+        // When
+        XMLElement copy = template.cloneShared();
+        copy.getChild(1).setAttribute("class", "b");
+        ((StyleElement) copy.getChild(0)).getRule(0).setProperty("color", "blue");
+        XMLElement other = template.cloneShared();
+        XMLElement lazy = new XMLParser().lazy(true).parse("<a><b>x</b><c><d>y</d></c></a>");
+        XMLElement lazyCopy = lazy.cloneShared();
+        lazyCopy.getChild(1).getChild(0).setContent("z");
+
+        // Then
+        assertTrue(template.isFrozen());
+        assertEquals(DivElement.class, copy.getChild(1).getClass());
+        assertSame(copy, copy.getChild(1).parent());
+        copy.getChild(1).getAttributes().put("title", "t");
+        assertEquals("a", template.getChild(1).getOwnAttribute("class"));
+        assertEquals(null, template.getChild(1).getOwnAttribute("title"));
+        assertEquals("t", copy.getChild(1).getOwnAttribute("title"));
+        assertThrows(IllegalStateException.class, () -> template.getChild(1).getAttributes().remove("class"));
+        assertEquals("red", ((StyleElement) template.getChild(0)).getRule(0).getPropertyValue("color"));
+        assertEquals(template.toString(), other.toString());
+        assertSame(copy.getChild(1), copy.getChild(1).getChild(0).parent());
+        assertThrows(IllegalStateException.class, () -> template.getChild(2).setContent("changed"));
+        assertThrows(UnsupportedOperationException.class, () -> template.getChildren().clear());
+        assertThrows(IllegalStateException.class, () -> ((StyleElement) template.getChild(0)).getRule(0).setProperty("color", "green"));
+        assertEquals("y", lazy.getChild(1).getChild(0).getContent());
+        assertEquals("z", lazyCopy.getChild(1).getChild(0).getContent());
+        assertEquals("x", lazyCopy.getChild(0).getContent());
+    }
+
+    @Test
+    public void lazyParseCreatesElementsOnDemand() {
+        // Given
+        String document = "<html><style>p { color: red }</style>\n<div id=\"first\" class=\"a b\"><p>one</p>text<!-- c -->more</div>"
+                + "<div><p/><p>two</p><p id=\"last\">three</p></div></html>";
+        int[] created = new int[1];
+        XMLParser parser = new XMLParser().lazy(true).with("p", attributes -> {
+            created[0]++;
+            return new XMLElement("p", attributes);
+        });
+
+        // When
+        XMLElement root = parser.parse(document);
+        XMLElement first = root.getElementById("first");
+        int createdForFirst = created[0];
+        String content = first.getContent();
+        int createdForContent = created[0];
+
+        // Then
+        assertEquals(0, createdForFirst);
+        assertEquals(1, createdForContent);
+        assertEquals("text\nmore", content);
+        assertEquals("red", ((StyleElement) root.getChild(0)).getRule(0).getPropertyValue("color"));
+        assertEquals(new XMLParser().parse(document).toString(), root.toString());
+        assertEquals(4, created[0]);
+        assertEquals("three", root.getElementById("last").getContent());
+    }
+
+    @Test
+    public void editsReparseOnlyTheEditedElements() {
+        // Given
+        String source = "<html><style>p { color: red }</style><div id=\"a\"><p>one</p><p>two</p></div><div id=\"b\"/></html>";
+        EditableDocument document = new XMLParser().parseEditable(source);
+        XMLElement root = document.getRoot();
+        List<CSSRule> rules = ((StyleElement) root.getChild(0)).getRules();
+        XMLElement second = root.getElementById("a").getChild(1);
+
+        // When
+        document.edit(source.indexOf("two"), 3, "deux");
+        String renamed = document.getText();
+        document.edit(renamed.indexOf("<div id=\"b\""), 0, "<p>new</p>");
+        document.edit(document.getText().indexOf("one") + 2, 0, "</p><p>");
+
+        // Then
+        assertSame(root, document.getRoot());
+        assertSame(rules, ((StyleElement) root.getChild(0)).getRules());
+        assertSame(second, root.getElementById("a").getChild(2));
+        assertEquals("deux", second.getContent());
+        assertEquals("new", root.getChild(2).getContent());
+        assertEquals(new XMLParser().parse(document.getText()).toString(), root.toString());
+        assertEquals("<html><style>p { color: red }</style><div id=\"a\"><p>on</p><p>e</p><p>deux</p></div><p>new</p><div id=\"b\"/></html>",
+                document.getText());
+    }
+
+    @Test
+    public void parseListenerReceivesMetrics() {
+        // Given
+        List<ParseMetrics> reported = new ArrayList<>();
+        XMLParser parser = new XMLParser().with("div", DivElement::new).parseListener(reported::add);
+
+        // When
+        parser.parse("<html lang=\"fr\"><style>p { color: red }</style><div id=\"a\" class=\"b\"><p>hello</p></div></html>");
+
+        // Then
+        assertEquals(1, reported.size());
+        ParseMetrics metrics = reported.get(0);
+        assertEquals(4, metrics.getElementCount());
+        assertEquals(3, metrics.getAttributeCount());
+        assertEquals("p { color: red }".length() + "hello".length(), metrics.getTextLength());
+        assertEquals(3, metrics.getMaxDepth());
+        assertEquals(2, metrics.getFactoryCalls());
+        assertTrue(metrics.getCssNanos() > 0);
+        assertTrue(metrics.getTotalNanos() >= metrics.getTokenizeNanos() + metrics.getFactoryNanos() + metrics.getCssNanos());
+    }
+
+    @Test
+    public void traversalsVisitEachElementOnce() {
+        // Given
+        XMLElement root = new XMLParser().parse("<a><b><d/><e/></b><c><f/></c></a>");
+        StringBuilder wide = new StringBuilder("<root>");
+        for (int i = 0; i < 2000; i++) {
+            wide.append("<item class=\"").append(i % 3 == 0 ? "x" : "y").append("\"><sub/></item>");
+        }
+        XMLElement big = new XMLParser().parse(wide.append("</root>").toString());
+        String deep = String.join("", Collections.nCopies(100_000, "<n>")) + String.join("", Collections.nCopies(100_000, "</n>"));
+
+        // When
+        List<String> visited = new ArrayList<>();
+        root.visitDeep(element -> visited.add(element.getTagName()));
+        List<String> levels = new ArrayList<>();
+        root.breadthFirstIterator().forEachRemaining(element -> levels.add(element.getTagName()));
+        long parallel = big.parallelStream().filter(element -> element.hasClass("x")).count();
+        List<XMLElement> ordered = big.parallelStream().collect(Collectors.toList());
+
+        // Then
+        assertEquals(Arrays.asList("a", "b", "d", "e", "c", "f"), visited);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), levels);
+        assertEquals(big.getElementsByClassName("x").size(), parallel);
+        assertEquals(big.stream().collect(Collectors.toList()), ordered);
+        assertEquals(4001, ordered.size());
+        assertEquals(99_999, new XMLParser().parse(deep).getElementsByTagName("n").size());
+    }
 }